@@ -0,0 +1,219 @@
+package com.pv286.bip380;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Checksum;
+
+// Splits an input stream into trimmed, non-empty lines using one reusable byte buffer, in place of
+// Scanner plus replace("\r", "").trim(). Like Scanner, \n, \r, \r\n, U+2028, U+2029 and U+0085 all
+// end a line; the last three are rewritten to \n as input is read, so read() returns them as \n
+// too. An ASCII line is returned as a Line view over the buffer, which stays valid only until the
+// next call to next(); callers that keep a line must call toString(). A line with non-ASCII bytes is
+// returned as a decoded String so the commands see exactly the characters Scanner would have produced.
+final class AsciiLineReader {
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[256]);
+
+    private final InputStream in;
+    private byte[] buffer = new byte[1 << 16];
+    private int start;
+    // Bytes [start, end) are ready; [end, limit) are the start of a separator still being read
+    private int end;
+    private int limit;
+    private boolean eof;
+    private final Line line = new Line();
+
+    AsciiLineReader(InputStream in) {
+        this.in = in;
+    }
+
+    // Next non-blank line, or null at end of input
+    CharSequence next() throws IOException {
+        while (true) {
+            int scan = start;
+            int terminator = -1;
+            while (terminator == -1) {
+                for (; scan < end; scan++) {
+                    byte b = buffer[scan];
+                    if (b == '\n' || b == '\r') {
+                        terminator = scan;
+                        break;
+                    }
+                }
+                if (terminator == -1) {
+                    // fill() may move the pending bytes to the front of the buffer
+                    int scanned = scan - start;
+                    if (eof || !fill()) {
+                        if (start == end) return null;
+                        terminator = end;
+                    } else {
+                        scan = start + scanned;
+                    }
+                }
+            }
+            int from = start;
+            start = terminator < end ? terminator + 1 : terminator;
+            CharSequence next = slice(buffer, from, terminator, line);
+            if (next != null) return next;
+        }
+    }
+
+    // Next byte, or -1 at end of input; for callers that stream a line instead of holding it whole
+    int read() throws IOException {
+        if (start == end && (eof || !fill())) {
+            return -1;
+        }
+        return buffer[start++] & 0xff;
+    }
+
+    // The trimmed text of bytes[from, to) as view (re-pointed, not copied), or as a String if it is
+    // not ASCII; null if it is blank
+    static CharSequence slice(byte[] bytes, int from, int to, Line view) {
+        while (from < to && (bytes[from] & 0xff) <= ' ') from++;
+        while (to > from && (bytes[to - 1] & 0xff) <= ' ') to--;
+        if (from == to) return null;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] < 0) {
+                return new String(bytes, from, to - from, StandardCharsets.UTF_8).trim();
+            }
+        }
+        view.set(bytes, from, to - from);
+        return view;
+    }
+
+    // Reads more input, compacting or growing the buffer as needed; false at end of input
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            end -= start;
+            limit -= start;
+            start = 0;
+        }
+        int ready = end;
+        while (end == ready) {
+            if (limit == buffer.length) {
+                byte[] grown = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, limit);
+                buffer = grown;
+            }
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n == -1) {
+                // A separator cut off by the end of input is just bytes
+                eof = true;
+                end = limit;
+                return end > ready;
+            }
+            limit += n;
+            rewriteSeparators();
+        }
+        return true;
+    }
+
+    // Rewrites the UTF-8 encodings of U+2028 (E2 80 A8), U+2029 (E2 80 A9) and U+0085 (C2 85) in
+    // [end, limit) to \n. E2 and C2 never continue another sequence, so these bytes always decode to
+    // those characters, as they would for Scanner. A possible separator at the tail is held back.
+    private void rewriteSeparators() {
+        int to = end;
+        int from = end;
+        while (from < limit) {
+            byte b = buffer[from];
+            if (b == (byte) 0xE2 || b == (byte) 0xC2) {
+                int length = b == (byte) 0xE2 ? 3 : 2;
+                if (from + length > limit) break;
+                boolean separator = length == 3
+                    ? buffer[from + 1] == (byte) 0x80 && (buffer[from + 2] == (byte) 0xA8 || buffer[from + 2] == (byte) 0xA9)
+                    : buffer[from + 1] == (byte) 0x85;
+                if (separator) {
+                    buffer[to++] = '\n';
+                    from += length;
+                    continue;
+                }
+            }
+            buffer[to++] = b;
+            from++;
+        }
+        System.arraycopy(buffer, from, buffer, to, limit - from);
+        limit = to + (limit - from);
+        end = to;
+    }
+
+    // Prints s, suffix and a line separator. A Line is copied with them into a per-thread scratch
+    // buffer and written at once, so no String is built and an autoflushing stream flushes once.
+    static void println(PrintStream out, CharSequence s, String suffix) {
+        if (!(s instanceof Line)) {
+            out.println(s + suffix);
+            return;
+        }
+        Line view = (Line) s;
+        int size = view.length + suffix.length() + LINE_SEPARATOR.length;
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < size) {
+            scratch = new byte[Math.max(size, scratch.length * 2)];
+            SCRATCH.set(scratch);
+        }
+        System.arraycopy(view.bytes, view.offset, scratch, 0, view.length);
+        int pos = view.length;
+        for (int i = 0; i < suffix.length(); i++) {
+            scratch[pos++] = (byte) suffix.charAt(i);
+        }
+        System.arraycopy(LINE_SEPARATOR, 0, scratch, pos, LINE_SEPARATOR.length);
+        out.write(scratch, 0, size);
+    }
+
+    static void println(PrintStream out, CharSequence s) {
+        if (s instanceof Line) {
+            println(out, s, "");
+        } else {
+            out.println(s);
+        }
+    }
+
+    // ASCII CharSequence over a byte range; toString is the only place a String is built
+    static final class Line implements CharSequence {
+        private byte[] bytes;
+        private int offset;
+        private int length;
+
+        Line() {
+        }
+
+        Line(byte[] bytes, int offset, int length) {
+            set(bytes, offset, length);
+        }
+
+        void set(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+            return (char) bytes[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > length || from > to) throw new IndexOutOfBoundsException("range " + from + "-" + to + ", length " + length);
+            return new Line(bytes, offset + from, to - from);
+        }
+
+        // Adds the line's bytes, which are also its UTF-8 encoding
+        void updateChecksum(Checksum checksum) {
+            checksum.update(bytes, offset, length);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+        }
+    }
+}
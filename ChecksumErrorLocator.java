@@ -0,0 +1,328 @@
+package com.pv286.bip380;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// Finds single and double character substitutions that make a descriptor's checksum verify.
+// The polymod is linear over GF(2), so the effect of changing symbol p by an xor delta d is the xor
+// of the basis vectors of p for the bits set in d; a substitution set is a fix exactly when its
+// syndromes xor to the residue of the original expression. Each symbol's 5 basis vectors are
+// computed once instead of re-running the polymod for every position and replacement. The single
+// search walks them from the last symbol down and keeps only the current group's, so its memory
+// is one byte per script character; only the double search, capped at MAX_DOUBLE_LENGTH, keeps
+// the whole table.
+final class ChecksumErrorLocator {
+    private static final String INPUT_CHARSET = DescriptorChecksum.INPUT_CHARSET;
+    private static final String CHECKSUM_CHARSET = DescriptorChecksum.CHECKSUM_CHARSET;
+    private static final int MAX_CANDIDATES = 20;
+    private static final int PARALLEL_THRESHOLD = 256;
+    // Double-error edits are packed as (syndrome << 23 | position << 7 | replacement)
+    private static final int MAX_DOUBLE_LENGTH = (1 << 16) - 9;
+
+    private final String script;
+    private final int n;
+    private final byte[] values;
+    private final int[] checksum;
+    private final int scriptSymbols;
+    private final long residue;
+
+    private ChecksumErrorLocator(String script, String providedChecksum) {
+        DescriptorChecksum descsum = new DescriptorChecksum();
+        descsum.update(script);
+        this.residue = descsum.polymod(providedChecksum) ^ 1;
+        this.script = script;
+        this.n = script.length();
+        this.values = new byte[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = (byte) DescriptorChecksum.inputIndex(script.charAt(i));
+        }
+        this.checksum = new int[8];
+        for (int k = 0; k < 8; k++) {
+            checksum[k] = CHECKSUM_CHARSET.indexOf(providedChecksum.charAt(k));
+        }
+        this.scriptSymbols = n + (n + 2) / 3;
+    }
+
+    // Returns corrected SCRIPT#CHECKSUM candidates that pass valid, fewest substitutions first
+    static List<Candidate> locate(String script, String providedChecksum, Predicate<String> valid) {
+        ChecksumErrorLocator locator = new ChecksumErrorLocator(script, providedChecksum);
+        if (locator.residue == 0) {
+            return new ArrayList<>();
+        }
+        // Doubles are only searched when no single substitution gives a valid descriptor
+        List<Candidate> plausible = plausible(locator.singles(), valid);
+        if (plausible.isEmpty() && locator.n <= MAX_DOUBLE_LENGTH) {
+            plausible = plausible(locator.doubles(), valid);
+        }
+        return plausible;
+    }
+
+    private static List<Candidate> plausible(List<Candidate> candidates, Predicate<String> valid) {
+        candidates.sort(Comparator.comparing((Candidate c) -> c.positions.length).thenComparing(c -> c.key));
+        List<Candidate> plausible = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (plausible.size() == MAX_CANDIDATES) break;
+            if (valid.test(candidate.script())) {
+                plausible.add(candidate);
+            }
+        }
+        return plausible;
+    }
+
+    private List<Candidate> singles() {
+        List<Candidate> candidates = new ArrayList<>();
+        // window holds the basis of the symbols being searched, from symbol base on
+        long[] current = {1, 1 << 1, 1 << 2, 1 << 3, 1 << 4};
+        long[] window = new long[8 * 5];
+        for (int p = scriptSymbols + 7; p >= scriptSymbols; p--) {
+            storeAndStep(current, window, (p - scriptSymbols) * 5);
+        }
+        addSingles(candidates, n, n + 8, window, scriptSymbols);
+        for (int g = (n + 2) / 3 - 1; g >= 0; g--) {
+            for (int p = groupSymbol(g); p >= g * 4; p--) {
+                storeAndStep(current, window, (p - g * 4) * 5);
+            }
+            addSingles(candidates, g * 3, g * 3 + groupSize(g), window, g * 4);
+        }
+        return candidates;
+    }
+
+    private void addSingles(List<Candidate> candidates, int from, int to, long[] basis, int base) {
+        for (int e = from; e < to; e++) {
+            String alphabet = e < n ? INPUT_CHARSET : CHECKSUM_CHARSET;
+            for (int r = 0; r < alphabet.length(); r++) {
+                if (isReplacement(e, r) && syndrome(e, r, basis, base) == residue) {
+                    candidates.add(new Candidate(this, new int[]{e}, new int[]{r}));
+                }
+            }
+        }
+    }
+
+    // Stores the basis of one symbol at basis[offset] and steps current to the symbol before it
+    private static void storeAndStep(long[] current, long[] basis, int offset) {
+        System.arraycopy(current, 0, basis, offset, 5);
+        for (int b = 0; b < 5; b++) {
+            current[b] = DescriptorChecksum.polymodStep(current[b], 0);
+        }
+    }
+
+    // basis[p * 5 + b]: effect on the final polymod of flipping bit b of symbol p
+    private long[] basisTable() {
+        long[] basis = new long[(scriptSymbols + 8) * 5];
+        long[] current = {1, 1 << 1, 1 << 2, 1 << 3, 1 << 4};
+        for (int p = scriptSymbols + 7; p >= 0; p--) {
+            storeAndStep(current, basis, p * 5);
+        }
+        return basis;
+    }
+
+    private List<Candidate> doubles() {
+        int positions = n + 8;
+        long[] basis = basisTable();
+        long[] edits = new long[positions * INPUT_CHARSET.length()];
+        int count = 0;
+        for (int e = 0; e < positions; e++) {
+            String alphabet = e < n ? INPUT_CHARSET : CHECKSUM_CHARSET;
+            for (int r = 0; r < alphabet.length(); r++) {
+                if (isReplacement(e, r)) {
+                    edits[count++] = syndrome(e, r, basis, 0) << 23 | (long) e << 7 | r;
+                }
+            }
+        }
+        long[] sorted = Arrays.copyOf(edits, count);
+        Arrays.sort(sorted);
+
+        IntStream firstEdits = IntStream.range(0, sorted.length);
+        if (n > PARALLEL_THRESHOLD) firstEdits = firstEdits.parallel();
+        List<Candidate> candidates = firstEdits.boxed().flatMap(i -> {
+            long first = sorted[i];
+            int e1 = (int) (first >>> 7) & 0xffff;
+            int r1 = (int) first & 0x7f;
+            long target = (first >>> 23) ^ residue;
+            List<Candidate> found = new ArrayList<>();
+            for (int j = lowerBound(sorted, target); j < sorted.length && sorted[j] >>> 23 == target; j++) {
+                int e2 = (int) (sorted[j] >>> 7) & 0xffff;
+                // Same-group pairs share one group symbol, so their syndromes do not simply xor
+                if (e2 > e1 && !sameGroup(e1, e2)) {
+                    found.add(new Candidate(this, new int[]{e1, e2}, new int[]{r1, (int) sorted[j] & 0x7f}));
+                }
+            }
+            return found.stream();
+        }).collect(Collectors.toList());
+
+        IntStream groups = IntStream.range(0, (n + 2) / 3);
+        if (n > PARALLEL_THRESHOLD) groups = groups.parallel();
+        candidates.addAll(groups.boxed().flatMap(g -> sameGroupDoubles(g, basis).stream()).collect(Collectors.toList()));
+        return candidates;
+    }
+
+    // Within a group, the group-symbol change depends only on the high bits (r >> 5) of the two
+    // replacements, so for each of those 9 classes and each first replacement the second one's
+    // low-symbol syndrome is fixed and is looked up instead of trying every replacement
+    private List<Candidate> sameGroupDoubles(int g, long[] basis) {
+        List<Candidate> found = new ArrayList<>();
+        int start = g * 3;
+        int end = Math.min(start + 3, n);
+        int oldGroup = groupValue(g);
+        long[][] lowSyndromes = new long[end - start][32];
+        List<Map<Long, Integer>> deltas = new ArrayList<>();
+        for (int e = start; e < end; e++) {
+            Map<Long, Integer> delta = new HashMap<>();
+            for (int d = 0; d < 32; d++) {
+                lowSyndromes[e - start][d] = symbolSyndrome(basis, lowSymbol(e), d);
+                delta.put(lowSyndromes[e - start][d], d);
+            }
+            deltas.add(delta);
+        }
+        for (int e1 = start; e1 < end; e1++) {
+            for (int e2 = e1 + 1; e2 < end; e2++) {
+                for (int c1 = 0; c1 * 32 < INPUT_CHARSET.length(); c1++) {
+                    for (int c2 = 0; c2 * 32 < INPUT_CHARSET.length(); c2++) {
+                        int newGroup = oldGroup + (c1 - (values[e1] >> 5)) * groupWeight(e1) + (c2 - (values[e2] >> 5)) * groupWeight(e2);
+                        long groupSyndrome = symbolSyndrome(basis, groupSymbol(g), oldGroup ^ newGroup);
+                        for (int r1 = c1 * 32; r1 < Math.min(c1 * 32 + 32, INPUT_CHARSET.length()); r1++) {
+                            if (!isReplacement(e1, r1)) continue;
+                            long target = residue ^ groupSyndrome ^ lowSyndromes[e1 - start][(values[e1] ^ r1) & 31];
+                            Integer d2 = deltas.get(e2 - start).get(target);
+                            if (d2 == null) continue;
+                            int r2 = c2 * 32 + ((values[e2] & 31) ^ d2);
+                            if (r2 < INPUT_CHARSET.length() && isReplacement(e2, r2)) {
+                                found.add(new Candidate(this, new int[]{e1, e2}, new int[]{r1, r2}));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private boolean isReplacement(int e, int r) {
+        if (e < n) {
+            return r != values[e] && INPUT_CHARSET.charAt(r) != '#';
+        }
+        return r != checksum[e - n];
+    }
+
+    private boolean sameGroup(int e1, int e2) {
+        return e1 < n && e2 < n && e1 / 3 == e2 / 3;
+    }
+
+    // Effect of replacing position e by r, with basis holding 5 vectors per symbol from symbol base on
+    private long syndrome(int e, int r, long[] basis, int base) {
+        if (e >= n) {
+            int k = e - n;
+            return symbolSyndrome(basis, scriptSymbols + k - base, checksum[k] ^ r);
+        }
+        int g = e / 3;
+        int oldGroup = groupValue(g);
+        int newGroup = oldGroup + ((r >> 5) - (values[e] >> 5)) * groupWeight(e);
+        return symbolSyndrome(basis, lowSymbol(e) - base, (values[e] ^ r) & 31)
+                ^ symbolSyndrome(basis, groupSymbol(g) - base, oldGroup ^ newGroup);
+    }
+
+    private static long symbolSyndrome(long[] basis, int p, int d) {
+        long syndrome = 0;
+        for (int b = 0; d != 0; b++, d >>>= 1) {
+            if ((d & 1) != 0) syndrome ^= basis[p * 5 + b];
+        }
+        return syndrome;
+    }
+
+    // Symbol layout from the BIP 380 expansion: three low-bit symbols, then their group symbol
+    private int lowSymbol(int e) {
+        return (e / 3) * 4 + e % 3;
+    }
+
+    private int groupSymbol(int g) {
+        return g * 4 + groupSize(g);
+    }
+
+    private int groupSize(int g) {
+        return Math.min(3, n - g * 3);
+    }
+
+    private int groupWeight(int e) {
+        int exponent = groupSize(e / 3) - 1 - e % 3;
+        return exponent == 2 ? 9 : exponent == 1 ? 3 : 1;
+    }
+
+    private int groupValue(int g) {
+        int value = 0;
+        for (int i = g * 3; i < g * 3 + groupSize(g); i++) {
+            value = value * 3 + (values[i] >> 5);
+        }
+        return value;
+    }
+
+    private static int lowerBound(long[] sorted, long syndrome) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] >>> 23 < syndrome) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    static final class Candidate {
+        private final int[] positions;
+        private final char[] from;
+        private final char[] to;
+        private final String descriptor;
+        private final String key;
+
+        private Candidate(ChecksumErrorLocator locator, int[] edits, int[] replacements) {
+            int n = locator.n;
+            char[] expr = (locator.script + "#" + checksumString(locator.checksum)).toCharArray();
+            this.positions = new int[edits.length];
+            this.from = new char[edits.length];
+            this.to = new char[edits.length];
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < edits.length; i++) {
+                int e = edits[i];
+                // Checksum edits are numbered after the script; skip the '#' to get the expression index
+                positions[i] = e < n ? e : e + 1;
+                from[i] = expr[positions[i]];
+                to[i] = (e < n ? INPUT_CHARSET : CHECKSUM_CHARSET).charAt(replacements[i]);
+                expr[positions[i]] = to[i];
+                key.append(String.format("%08d:%c", positions[i], to[i]));
+            }
+            this.descriptor = new String(expr);
+            this.key = key.toString();
+        }
+
+        String descriptor() {
+            return descriptor;
+        }
+
+        String script() {
+            return descriptor.substring(0, descriptor.lastIndexOf('#'));
+        }
+
+        String describe() {
+            StringBuilder sb = new StringBuilder(positions.length == 1 ? "position " : "positions ");
+            for (int i = 0; i < positions.length; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(positions[i]).append(" ('").append(from[i]).append("' -> '").append(to[i]).append("')");
+            }
+            return sb.toString();
+        }
+
+        private static String checksumString(int[] checksum) {
+            char[] chars = new char[checksum.length];
+            for (int k = 0; k < checksum.length; k++) {
+                chars[k] = CHECKSUM_CHARSET.charAt(checksum[k]);
+            }
+            return new String(chars);
+        }
+    }
+}
@@ -7,10 +7,8 @@ import org.bitcoinj.crypto.DeterministicKey;
 import org.bitcoinj.crypto.HDKeyDerivation;
 import org.bitcoinj.core.Utils;
 import java.nio.ByteBuffer;
-import java.util.regex.Pattern;
 import org.bouncycastle.math.ec.ECPoint;
 import java.util.Arrays; // Added import for parsing Weak seed values 
-import java.util.Locale; // import for Locale.ENGLISH
 
 public class DeriveKeyCommand {
     private static final NetworkParameters params = NetworkParameters.fromID(NetworkParameters.ID_MAINNET); 
@@ -19,15 +17,20 @@ public class DeriveKeyCommand {
         if (args.length == 0) throw new IllegalArgumentException("Missing argument: value"); // Added check for missing argument (Static analysis vulnerability) 
         String value = args[0];
         String path = args.length > 2 && args[1].equals("--path") ? args[2] : null;
+        System.out.println(deriveLine(value, path));
+    }
 
+    // The "xpub:xprv" (or "xpub:") line for one value, also used per stdin line: hex seeds are decoded
+    // straight from the line; only xprv/xpub values become a String (bitcoinj's Base58 takes one)
+    static String deriveLine(CharSequence value, String path) {
         try {
             DeterministicKey key;
             if (isSeed(value)) {
-                if (Arrays.equals(parseSeed(value), new byte[parseSeed(value).length])) throw new IllegalArgumentException("Weak seed");    //Entropy check on the seed value 
                 byte[] seedBytes = parseSeed(value);
+                if (Arrays.equals(seedBytes, new byte[seedBytes.length])) throw new IllegalArgumentException("Weak seed");    //Entropy check on the seed value 
                 key = HDKeyDerivation.createMasterPrivateKey(seedBytes);
-            } else if (value.startsWith("xprv")) {
-                key = DeterministicKey.deserializeB58(value, params);
+            } else if (startsWith(value, "xprv")) {
+                key = DeterministicKey.deserializeB58(value.toString(), params);
                 validatePublicKey(key);
                 int childNumberRaw = ByteBuffer.wrap(key.getIdentifier()).getInt(4);
                 if (key.getDepth() == 0) {
@@ -38,8 +41,8 @@ public class DeriveKeyCommand {
                         throw new IllegalArgumentException("zero depth with non-zero index");
                     }
                 }
-            } else if (value.startsWith("xpub")) {
-                key = DeterministicKey.deserializeB58(value, params);
+            } else if (startsWith(value, "xpub")) {
+                key = DeterministicKey.deserializeB58(value.toString(), params);
                 validatePublicKey(key);
                 int childNumberRaw = ByteBuffer.wrap(key.getIdentifier()).getInt(4);
                 if (key.getDepth() == 0) {
@@ -59,13 +62,15 @@ public class DeriveKeyCommand {
                 key = deriveChildKey(key, path);
             }
 
+            String line;
             if (key.hasPrivKey()) {
-                System.out.println(key.serializePubB58(params) + ":" + key.serializePrivB58(params));
+                line = key.serializePubB58(params) + ":" + key.serializePrivB58(params);
                 key = null; System.gc();        // Key was not zeroed earlier because of which sensitive data can be leaked
             } else {
-                System.out.println(key.serializePubB58(params) + ":");
+                line = key.serializePubB58(params) + ":";
                 key = null; System.gc();        // Key was not zeroed earlier because of which sensitive data can be leaked
             }
+            return line;
         } catch (IllegalArgumentExceptionWithSource e) {
             String errorMessage = e.getMessage();
             if (errorMessage.equals("invalid pubkey")) {
@@ -82,9 +87,9 @@ public class DeriveKeyCommand {
         //} catch (Exception e) {
         } catch (IllegalArgumentException e) {      //Improved Debugging
             String errorMessage = e.getMessage();
-            if (value.startsWith("xpub") && errorMessage != null && errorMessage.contains("00000000000000000000000000000000000000000000000000000000000000000c")) {
+            if (startsWith(value, "xpub") && errorMessage != null && errorMessage.contains("00000000000000000000000000000000000000000000000000000000000000000c")) {
                 throw new IllegalArgumentException("pubkey version / prvkey mismatch");
-            } else if (value.startsWith("xprv") || value.startsWith("xpub")) {
+            } else if (startsWith(value, "xprv") || startsWith(value, "xpub")) {
                 
                 if (errorMessage == null) {
                     throw new IllegalArgumentException("private key 0 not in 1..n-1");
@@ -96,7 +101,7 @@ public class DeriveKeyCommand {
                 
                 if (errorMessage != null && errorMessage.contains("private key exceeds 32 bytes: 258 bits")) {
                     //throw new IllegalArgumentException("pubkey version / prvkey mismatch"); //correct handling of the test case
-                    throw new IllegalArgumentException(value.startsWith("xprv") ? "prvkey version / pubkey mismatch" : "pubkey version / prvkey mismatch");
+                    throw new IllegalArgumentException(startsWith(value, "xprv") ? "prvkey version / pubkey mismatch" : "pubkey version / prvkey mismatch");
                 }
 
                 if (errorMessage != null && errorMessage.startsWith("0")) {
@@ -112,7 +117,7 @@ public class DeriveKeyCommand {
                 //throw new IllegalArgumentException("Invalid extended " + (value.startsWith("xprv") ? "private" : "public") + " key: " + value + "  errormessage:  " + errorMessage, e);
                 throw new IllegalArgumentException(errorMessage, e);
             } else {
-                if (value.startsWith("DMwo") ) {
+                if (startsWith(value, "DMwo") ) {
                 throw new IllegalArgumentException("unknown extended key version");
                 }
                 else if (errorMessage.contains("must be two hex digits")) {
@@ -141,39 +146,78 @@ public class DeriveKeyCommand {
         }
     }
 
-    private static boolean isSeed(String value) {
-        String cleanValue = value.replaceAll("[^0-9a-fA-F]", "");
-        return Pattern.matches("[0-9a-fA-F]+", cleanValue) && 
-               !value.trim().startsWith("xprv") && 
-               !value.trim().startsWith("xpub");
+    private static boolean isSeed(CharSequence value) {
+        int start = 0;
+        while (start < value.length() && value.charAt(start) <= ' ') start++;
+        CharSequence trimmed = value.subSequence(start, value.length());
+        if (startsWith(trimmed, "xprv") || startsWith(trimmed, "xpub")) return false;
+        for (int i = 0; i < value.length(); i++) {
+            if (hexValue(value.charAt(i)) >= 0) return true;
+        }
+        return false;
     }
 
-    private static byte[] parseSeed(String value) {
-        String trimmedValue = value.trim();
-        String[] segments = trimmedValue.split("\\s+");
-        StringBuilder hexString = new StringBuilder();
+    // Validates and decodes whitespace-separated hex in two passes over the value, without splitting it into Strings
+    private static byte[] parseSeed(CharSequence value) {
+        int from = 0;
+        int to = value.length();
+        while (from < to && value.charAt(from) <= ' ') from++;
+        while (to > from && value.charAt(to - 1) <= ' ') to--;
 
-        for (String segment : segments) {
-            if (!Pattern.matches("[0-9a-fA-F]+", segment)) {
-                //throw new IllegalArgumentException("Invalid seed (must contain only hex characters): " + value);      Incorrect error message
-                throw new IllegalArgumentException("invalid seed");
+        int digits = 0;
+        for (int i = from; i < to; ) {
+            int segmentEnd = i;
+            while (segmentEnd < to && !isSeparator(value.charAt(segmentEnd))) segmentEnd++;
+            for (int j = i; j < segmentEnd; j++) {
+                if (hexValue(value.charAt(j)) < 0) {
+                    //throw new IllegalArgumentException("Invalid seed (must contain only hex characters): " + value);      Incorrect error message
+                    throw new IllegalArgumentException("invalid seed");
+                }
             }
-            if (segment.length() == 1) {
+            if (segmentEnd - i == 1) {
                 throw new IllegalArgumentException("Invalid seed (each byte must be two hex digits): " + value);
             }
-            hexString.append(segment);
+            digits += segmentEnd - i;
+            i = segmentEnd;
+            while (i < to && isSeparator(value.charAt(i))) i++;
         }
 
-        //String cleanValue = hexString.toString().toLowerCase();
-        String cleanValue = hexString.toString().toLowerCase(Locale.ENGLISH);       // Added for consistent case conversion across locales
-        if (cleanValue.length() % 2 != 0) {
+        if (digits % 2 != 0) {
             throw new IllegalArgumentException("Invalid seed (must have even length): " + value);
         }
-        int bitLength = cleanValue.length() * 4;
+        int bitLength = digits * 4;
         if (bitLength < 128 || bitLength > 512) {
             throw new IllegalArgumentException("Invalid seed (must be 128-512 bits): " + value);
         }
-        return Utils.HEX.decode(cleanValue);
+        byte[] seed = new byte[digits / 2];
+        int nibble = 0;
+        for (int i = from; i < to; i++) {
+            int v = hexValue(value.charAt(i));
+            if (v < 0) continue;
+            seed[nibble / 2] |= (byte) (nibble % 2 == 0 ? v << 4 : v);
+            nibble++;
+        }
+        return seed;
+    }
+
+    // The characters matched by \s, which the seed was split on
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    private static boolean startsWith(CharSequence value, String prefix) {
+        if (value.length() < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (value.charAt(i) != prefix.charAt(i)) return false;
+        }
+        return true;
     }
 
     private static String normalizePath(String path) {
@@ -0,0 +1,100 @@
+package com.pv286.bip380;
+
+import java.util.Arrays;
+
+// Incremental BIP 380 descriptor checksum: characters are expanded and folded into the polymod
+// as they arrive, so memory does not depend on the script length
+final class DescriptorChecksum {
+    static final String INPUT_CHARSET = "0123456789()[],'/*abcdefgh@:$%{}IJKLMNOPQRSTUVWXYZ&+-.;<=>?!^_|~ijklmnopqrstuvwxyzABCDEFGH`#\"\\ ";
+    static final String CHECKSUM_CHARSET = "qpzry9x8gf2tvdw0s3jn54khce6mua7l";
+    private static final long[] GENERATOR = {0xf5dee51989L, 0xa9fdca3312L, 0x1bab10e32dL, 0x3706b1677aL, 0x644d626ffdL};
+    private static final int[] INPUT_INDEX = new int[128];
+
+    static {
+        Arrays.fill(INPUT_INDEX, -1);
+        for (int i = 0; i < INPUT_CHARSET.length(); i++) {
+            INPUT_INDEX[INPUT_CHARSET.charAt(i)] = i;
+        }
+    }
+
+    private long chk = 1;
+    private int group;
+    private int groupCount;
+
+    static int inputIndex(char c) {
+        return c < INPUT_INDEX.length ? INPUT_INDEX[c] : -1;
+    }
+
+    void update(char c) {
+        int v = inputIndex(c);
+        if (v == -1) {
+            throw new IllegalArgumentException("Invalid character in script: " + c);
+        }
+        chk = polymodStep(chk, v & 31); // Low 5 bits
+        group = group * 3 + (v >> 5);   // Group
+        if (++groupCount == 3) {
+            chk = polymodStep(chk, group);
+            group = 0;
+            groupCount = 0;
+        }
+    }
+
+    void update(CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            update(s.charAt(i));
+        }
+    }
+
+    // 8-character checksum of everything passed to update so far
+    String checksum() {
+        long c = flushGroup();
+        for (int i = 0; i < 8; i++) {
+            c = polymodStep(c, 0); // Placeholder for checksum
+        }
+        c ^= 1;
+        char[] checksum = new char[8];
+        for (int i = 0; i < 8; i++) {
+            checksum[i] = CHECKSUM_CHARSET.charAt((int) ((c >>> (5 * (7 - i))) & 31));
+        }
+        return new String(checksum);
+    }
+
+    // True if checksum matches everything passed to update so far
+    boolean verify(CharSequence checksum) {
+        for (int i = 0; i < checksum.length(); i++) {
+            if (CHECKSUM_CHARSET.indexOf(checksum.charAt(i)) == -1) return false;
+        }
+        return polymod(checksum) == 1;
+    }
+
+    // Raw polymod of everything passed to update so far followed by checksum, whose characters must be
+    // from CHECKSUM_CHARSET; 1 exactly when the checksum matches
+    long polymod(CharSequence checksum) {
+        long c = flushGroup();
+        for (int i = 0; i < checksum.length(); i++) {
+            c = polymodStep(c, CHECKSUM_CHARSET.indexOf(checksum.charAt(i)));
+        }
+        return c;
+    }
+
+    static String compute(CharSequence script) {
+        DescriptorChecksum checksum = new DescriptorChecksum();
+        checksum.update(script);
+        return checksum.checksum();
+    }
+
+    private long flushGroup() {
+        return groupCount > 0 ? polymodStep(chk, group) : chk;
+    }
+
+    static long polymodStep(long chk, int value) {
+        long top = chk >>> 35;
+        chk = ((chk & 0x7ffffffffL) << 5) ^ value;
+        for (int i = 0; i < 5; i++) {
+            if (((top >>> i) & 1) != 0) {
+                chk ^= GENERATOR[i];
+            }
+        }
+        return chk;
+    }
+}
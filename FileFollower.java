@@ -0,0 +1,256 @@
+package com.pv286.bip380;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+// Tails a growing input file and processes each complete line once. The checkpoint holds the byte
+// offset just past the last line whose output has been flushed, followed by the number of non-empty
+// lines before it (for --shard) and 1 if any line so far failed, so a restart resumes there. Output
+// is flushed and the checkpoint written once per chunk rather than once per line.
+final class FileFollower {
+    private static final int CHUNK_SIZE = 1 << 16;
+    // WatchService events can be late or missing (e.g. network filesystems), so also re-check on a timer
+    private static final long FALLBACK_POLL_MILLIS = 1000;
+
+    private final Path file;
+    private final Path checkpoint;
+    private final String path;
+    private final Main.RunnableWithArgs processor;
+    private final Shard shard;
+    private final PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), CHUNK_SIZE), false);
+    private final Object lock = new Object();
+
+    private long offset;
+    private long lines;
+    private boolean failed;
+    private boolean ioFailed;
+    private long savedOffset = -1;
+    private boolean savedFailed;
+    private boolean stopped;
+
+    private FileFollower(Path file, Path checkpoint, String path, Shard shard, Main.RunnableWithArgs processor) {
+        this.file = file;
+        this.checkpoint = checkpoint;
+        this.path = path;
+        this.shard = shard;
+        this.processor = processor;
+    }
+
+    // Runs until the process is stopped; only returns on an I/O error
+    static int follow(String file, String checkpoint, String path, Shard shard, Main.RunnableWithArgs processor) {
+        FileFollower follower = new FileFollower(Paths.get(file), Paths.get(checkpoint), path, shard, processor);
+        try {
+            follower.run();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // The checkpoint's failure flag is only about lines, so an I/O error shows in this run's
+        // trailer and exit code but is not carried into later runs
+        synchronized (follower.lock) {
+            follower.ioFailed = true;
+        }
+        return 1;
+    }
+
+    private void run() throws IOException, InterruptedException {
+        boolean resumed = readCheckpoint();
+        savedOffset = offset;
+        System.setOut(out);
+        if (shard != null) {
+            // A killed run may have left a partial record without its newline
+            if (resumed) out.println();
+            shard.writeHeader();
+            shard.writeResume(lines);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+        WatchService watcher = null;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            file.toAbsolutePath().getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            watcher = null;
+        }
+        try {
+            while (true) {
+                if (!drain()) {
+                    awaitChange(watcher);
+                }
+            }
+        } finally {
+            if (watcher != null) watcher.close();
+        }
+    }
+
+    // Processes every complete line past the offset; returns false if no complete line was added
+    private boolean drain() throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        try {
+            long size = channel.size();
+            if (size < offset) {
+                System.err.println("Error: " + file + " is shorter than checkpoint offset " + offset + "; restarting from the beginning");
+                synchronized (lock) {
+                    offset = 0;
+                    lines = 0;
+                    failed = false;
+                    commit();
+                    if (shard != null) {
+                        // Line numbers start again, so merge drops the records written so far
+                        shard.writeHeader();
+                        shard.writeResume(0);
+                    }
+                }
+            }
+            if (size == offset) {
+                return false;
+            }
+            long start = offset;
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            LineBuffer line = new LineBuffer();
+            long position = offset;
+            while (position < size) {
+                buffer.clear();
+                int n = channel.read(buffer, position);
+                if (n <= 0) break;
+                for (int i = 0; i < n; i++) {
+                    if (line.append(buffer.get(i))) {
+                        processLine(line, position + i + 1);
+                        line.reset();
+                    }
+                }
+                position += n;
+                synchronized (lock) {
+                    commit();
+                }
+            }
+            // A trailing partial line stays past the offset and is read again once it is terminated,
+            // so it alone does not count as progress; otherwise the caller would re-read it in a busy loop
+            return offset != start;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void processLine(LineBuffer bytes, long endOffset) {
+        synchronized (lock) {
+            if (stopped) return;
+            String line = bytes.text();
+            if (!line.isEmpty()) {
+                long current = lines++;
+                String[] processArgs = path != null ? new String[]{line, "--path", path} : new String[]{line};
+                boolean ok = true;
+                if (shard == null) {
+                    ok = Main.runLine(processor, processArgs);
+                } else if (shard.owns(current, line)) {
+                    ok = shard.record(current, () -> Main.runLine(processor, processArgs));
+                }
+                if (!ok) failed = true;
+            }
+            offset = endOffset;
+        }
+    }
+
+    private void awaitChange(WatchService watcher) throws InterruptedException {
+        if (watcher == null) {
+            Thread.sleep(FALLBACK_POLL_MILLIS);
+            return;
+        }
+        WatchKey key = watcher.poll(FALLBACK_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (key != null) {
+            key.pollEvents();
+            key.reset();
+        }
+    }
+
+    private void stop() {
+        synchronized (lock) {
+            stopped = true;
+            try {
+                commit();
+                if (shard != null) shard.writeTrailer(failed || ioFailed ? 1 : 0);
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+        }
+    }
+
+    // Output must reach stdout before the checkpoint moves past it; caller holds the lock
+    private void commit() throws IOException {
+        out.flush();
+        if (offset == savedOffset && failed == savedFailed) return;
+        Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap((offset + " " + lines + " " + (failed ? 1 : 0) + "\n").getBytes(StandardCharsets.US_ASCII)));
+            channel.force(true);
+        }
+        Files.move(tmp, checkpoint, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        savedOffset = offset;
+        savedFailed = failed;
+    }
+
+    // Returns false if there is no checkpoint yet
+    private boolean readCheckpoint() throws IOException {
+        if (!Files.exists(checkpoint)) {
+            return false;
+        }
+        String[] content = new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim().split("\\s+");
+        try {
+            offset = Long.parseLong(content[0]);
+            lines = content.length > 1 ? Long.parseLong(content[1]) : 0;
+            failed = content.length > 2 && Integer.parseInt(content[2]) != 0;
+            if (offset < 0 || lines < 0) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid checkpoint file: " + checkpoint);
+        }
+        savedFailed = failed;
+        return true;
+    }
+
+    // Collects one line's bytes; like AsciiLineReader, \n, \r, U+2028, U+2029 and U+0085 end a line
+    private static final class LineBuffer extends ByteArrayOutputStream {
+        // Adds b and returns true if it ended the line; the separator is not kept
+        boolean append(byte b) {
+            if (b == '\n' || b == '\r') {
+                return true;
+            }
+            if (b == (byte) 0x85 && count >= 1 && buf[count - 1] == (byte) 0xC2) {
+                count -= 1;
+                return true;
+            }
+            if ((b == (byte) 0xA8 || b == (byte) 0xA9) && count >= 2 && buf[count - 1] == (byte) 0x80 && buf[count - 2] == (byte) 0xE2) {
+                count -= 2;
+                return true;
+            }
+            write(b);
+            return false;
+        }
+
+        String text() {
+            return new String(buf, 0, count, StandardCharsets.UTF_8).trim();
+        }
+    }
+}
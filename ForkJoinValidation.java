@@ -0,0 +1,106 @@
+package com.pv286.bip380;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Fork-join helpers for --parallel. Work is split down to single descriptors and single keys so
+// idle workers can steal heavy xpub checks from busy ones. Failures are returned as values rather
+// than thrown across threads, so callers always see the original exception of the first failing
+// item in input order, exactly as a sequential loop would.
+final class ForkJoinValidation {
+    private ForkJoinValidation() {
+    }
+
+    static boolean inPool() {
+        return ForkJoinTask.inForkJoinPool();
+    }
+
+    // Runs task in the common pool, rethrowing its exception on the calling thread
+    static void invoke(Runnable task) {
+        RuntimeException failure = ForkJoinPool.commonPool().invoke(new FirstFailure<>(new Runnable[]{task}, 0, 1, Runnable::run));
+        if (failure != null) throw failure;
+    }
+
+    // Applies check to every item in parallel; returns the exception of the lowest-index failure, or null
+    static <T> RuntimeException firstFailure(T[] items, Consumer<T> check) {
+        FirstFailure<T> task = new FirstFailure<>(items, 0, items.length, check);
+        return inPool() ? task.invoke() : ForkJoinPool.commonPool().invoke(task);
+    }
+
+    // Runs work on every line in parallel with its output captured; captures come back in input order
+    static OutputCapture.Capture[] captureAll(List<String> lines, Predicate<? super String> work) {
+        OutputCapture.install();
+        OutputCapture.Capture[] captures = new OutputCapture.Capture[lines.size()];
+        if (captures.length == 0) return captures;
+        ForkJoinPool.commonPool().invoke(new CaptureLines(lines, 0, lines.size(), work, captures));
+        return captures;
+    }
+
+    private static final class FirstFailure<T> extends RecursiveTask<RuntimeException> {
+        private static final long serialVersionUID = 1L;
+
+        private final T[] items;
+        private final int from;
+        private final int to;
+        private final Consumer<T> check;
+
+        FirstFailure(T[] items, int from, int to, Consumer<T> check) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+            this.check = check;
+        }
+
+        @Override
+        protected RuntimeException compute() {
+            if (to - from == 1) {
+                try {
+                    check.accept(items[from]);
+                    return null;
+                } catch (RuntimeException e) {
+                    return e;
+                }
+            }
+            int mid = (from + to) >>> 1;
+            FirstFailure<T> right = new FirstFailure<>(items, mid, to, check);
+            right.fork();
+            RuntimeException left = new FirstFailure<>(items, from, mid, check).compute();
+            RuntimeException rightFailure = right.join();
+            return left != null ? left : rightFailure;
+        }
+    }
+
+    private static final class CaptureLines extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> lines;
+        private final int from;
+        private final int to;
+        private final Predicate<? super String> work;
+        private final OutputCapture.Capture[] captures;
+
+        CaptureLines(List<String> lines, int from, int to, Predicate<? super String> work, OutputCapture.Capture[] captures) {
+            this.lines = lines;
+            this.from = from;
+            this.to = to;
+            this.work = work;
+            this.captures = captures;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                String line = lines.get(from);
+                captures[from] = OutputCapture.capture(() -> work.test(line));
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new CaptureLines(lines, from, mid, work, captures), new CaptureLines(lines, mid, to, work, captures));
+        }
+    }
+}
@@ -20,21 +20,34 @@ public class HelpCommand {
         System.out.println("    -: Read expression from stdin.");
         System.out.println("    Example: bip380 key-expression L4rK1yDtCWekvXuE6oXD9jCYfFNV2cWRpVuPLBcCU2z8TrisoyY1");
         System.out.println();
-        System.out.println("  script-expression {expr} [--verify-checksum | --compute-checksum] [-]");
+        System.out.println("  script-expression {expr} [--verify-checksum [--locate-errors] | --compute-checksum | --checksum-only] [-]");
         System.out.println("    Process a BIP 380 script expression (e.g., pk(), pkh(), multi(), sh(), raw()).");
         System.out.println("    --verify-checksum: Verify the checksum (expects SCRIPT#CHECKSUM, outputs 'OK' or 'Error').");
         System.out.println("    --compute-checksum: Compute and append an 8-character checksum (outputs SCRIPT#CHECKSUM).");
+        System.out.println("    --locate-errors: On a checksum mismatch, list single or double character substitutions that fix it (implies --verify-checksum).");
+        System.out.println("    --checksum-only: Like --compute-checksum, but only checks the character set and syntax (keys are not decoded).");
+        System.out.println("    --parallel: Validate descriptors, and the keys inside each multi(), on a fork-join pool; output order is unchanged.");
         System.out.println("    -: Read expression from stdin.");
         System.out.println("    Examples:");
         System.out.println("      bip380 script-expression --verify-checksum raw(deadbeef)#89f8spxm");
         System.out.println("      bip380 script-expression --compute-checksum pkh(xpub661MyMwAqRbcFtXgS5sYJABqqG9YLmC4Q1Rdap9gSE8NqtwybGhePY2gZ29ESFjqJoCu1Rupje8YtGqsefD265TMg7usUDFdp6W1EGMcet8)");
         System.out.println();
+        System.out.println("  merge {file}...");
+        System.out.println("    Combine the outputs of '--shard i/N' runs (one file per shard) into the output and exit code of a single run.");
+        System.out.println("    Example: bip380 merge shard0.out shard1.out");
+        System.out.println();
         System.out.println("Options:");
         System.out.println("  --help                Show this help and exit.");
         System.out.println("  --path {path}         Specify derivation path for derive-key (e.g., /0/1h).");
         System.out.println("  --verify-checksum     Verify checksum for script-expression.");
         System.out.println("  --compute-checksum    Compute checksum for script-expression.");
+        System.out.println("  --locate-errors       Suggest corrections when script-expression checksum verification fails.");
+        System.out.println("  --checksum-only       Compute checksum for script-expression without validating keys.");
         System.out.println("  -                     Read input from stdin.");
+        System.out.println("  --shard {i/N[:hash]}  With - or --follow: only process this shard's lines (by line number, or by line hash)");
+        System.out.println("                        and print tagged records for 'merge'. 0 <= i < N.");
+        System.out.println("  --follow {file}       Process lines appended to {file}, waiting for new ones (any sub-command).");
+        System.out.println("  --checkpoint {file}   With --follow: byte offset of the last processed line; processing resumes there on restart.");
         System.out.println();
         System.out.println("Notes:");
         System.out.println("  - Spaces and case variations are preserved in script expressions for checksum calculation.");
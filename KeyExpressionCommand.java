@@ -9,9 +9,15 @@ public class KeyExpressionCommand {
     private static final NetworkParameters params = NetworkParameters.fromID(NetworkParameters.ID_MAINNET);
 
     public static void parseAndEcho(String[] args) {
-        String expr = args[0];
-        validateKeyExpression(expr);
-        System.out.println(expr);
+        parseAndEcho((CharSequence) args[0]);
+    }
+
+    // A bare hex public key is checked and echoed in place; any other expression is parsed as a String
+    public static void parseAndEcho(CharSequence expr) {
+        if (!isHexPublicKey(expr)) {
+            validateKeyExpression(expr.toString());
+        }
+        AsciiLineReader.println(System.out, expr);
     }
 
     static void validateKeyExpression(String expr) {
@@ -57,11 +63,14 @@ public class KeyExpressionCommand {
         }
     }
 
-    private static boolean isHexPublicKey(String key) {
-        if (!key.matches("[0-9a-fA-F]+")) return false;
+    private static boolean isHexPublicKey(CharSequence key) {
         int len = key.length();
-        return (len == 66 && (key.startsWith("02") || key.startsWith("03"))) || 
-               (len == 130 && key.startsWith("04"));
+        if (len == 0) return false;
+        for (int i = 0; i < len; i++) {
+            if (!ScriptExpressionCommand.isHexDigit(key.charAt(i))) return false;
+        }
+        return (len == 66 && key.charAt(0) == '0' && (key.charAt(1) == '2' || key.charAt(1) == '3')) ||
+               (len == 130 && key.charAt(0) == '0' && key.charAt(1) == '4');
     }
 
     private static boolean isWifPrivateKey(String key) {
@@ -1,12 +1,23 @@
 package com.pv286.bip380;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
 
 
 
 public class Main {
+    private static final byte[] RAW_PREFIX = "raw(".getBytes(StandardCharsets.US_ASCII);
+    private static final int PARALLEL_BATCH = 4096;
+    private static final int DEDUP_WINDOW = 4096;
+
     public static void main(String[] args) {
         for (String arg : args) {
             if (arg.equals("--help")) {
@@ -24,11 +35,21 @@ public class Main {
         String[] subArgs = new String[args.length - 1];
         System.arraycopy(args, 1, subArgs, 0, subArgs.length);
 
+        if (subCommand.equals("merge")) {
+            System.exit(Shard.merge(subArgs));
+        }
+
         String value = null;
         String path = null;
+        String shardSpec = null;
         boolean useStdin = false;
         boolean verifyChecksum = false;
         boolean computeChecksum = false;
+        boolean checksumOnly = false;
+        boolean locateErrors = false;
+        boolean parallel = false;
+        String followFile = null;
+        String checkpointFile = null;
 
         for (int i = 0; i < subArgs.length; i++) {
             if (subArgs[i].equals("-")) {
@@ -36,10 +57,26 @@ public class Main {
             } else if (subArgs[i].equals("--path") && i + 1 < subArgs.length) {
                 path = subArgs[i + 1];
                 i++; // Skip the next arg
+            } else if (subArgs[i].equals("--shard") && i + 1 < subArgs.length) {
+                shardSpec = subArgs[i + 1];
+                i++;
+            } else if (subArgs[i].equals("--follow") && i + 1 < subArgs.length) {
+                followFile = subArgs[i + 1];
+                i++;
+            } else if (subArgs[i].equals("--checkpoint") && i + 1 < subArgs.length) {
+                checkpointFile = subArgs[i + 1];
+                i++;
             } else if (subArgs[i].equals("--verify-checksum")) {
                 verifyChecksum = true;
             } else if (subArgs[i].equals("--compute-checksum")) {
                 computeChecksum = true;
+            } else if (subArgs[i].equals("--checksum-only")) {
+                checksumOnly = true;
+            } else if (subArgs[i].equals("--locate-errors")) {
+                locateErrors = true;
+                verifyChecksum = true;
+            } else if (subArgs[i].equals("--parallel")) {
+                parallel = true;
             } else if (!subArgs[i].startsWith("-") && value == null && !useStdin) {
                 value = subArgs[i];
             } else if (!subArgs[i].equals("--path") && subArgs[i].startsWith("-") && !subArgs[i].equals("-")) {
@@ -50,12 +87,36 @@ public class Main {
 
         final boolean finalVerifyChecksum = verifyChecksum;
         final boolean finalComputeChecksum = computeChecksum;
+        final boolean finalChecksumOnly = checksumOnly;
+        final boolean finalLocateErrors = locateErrors;
+        final boolean finalParallel = parallel;
+        final String finalValue = value;
+
+        Shard shard = shardSpec != null ? parseShard(shardSpec) : null;
+        if (shardSpec != null && (shard == null || (!useStdin && followFile == null))) {
+            if (shard != null) System.err.println("Error: '--shard' needs '-' or '--follow'");
+            System.exit(1);
+        }
+        if ((followFile == null) != (checkpointFile == null)) {
+            System.err.println("Error: '--follow' and '--checkpoint' must be used together");
+            System.exit(1);
+        }
+        if (followFile != null && (useStdin || value != null)) {
+            System.err.println("Error: use only '--follow', '-' or a value, not several");
+            System.exit(1);
+        }
+        if (parallel && (!subCommand.equals("script-expression") || followFile != null)) {
+            System.err.println("Error: '--parallel' only applies to script-expression with '-' or a value");
+            System.exit(1);
+        }
 
         int exitCode = 0;
         switch (subCommand) {
             case "derive-key":
-                if (useStdin) {
-                    exitCode = processStdinBatch("derive-key", subArgs, DeriveKeyCommand::derive);
+                if (followFile != null) {
+                    exitCode = FileFollower.follow(followFile, checkpointFile, path, shard, DeriveKeyCommand::derive);
+                } else if (useStdin) {
+                    exitCode = processStdinBatch("derive-key", subArgs, DeriveKeyCommand::deriveLine);
                 } else if (value != null) {
                     try {
                         String[] deriveArgs = path != null ? new String[]{value, "--path", path} : new String[]{value};
@@ -70,8 +131,10 @@ public class Main {
                 }
                 break;
             case "key-expression":
-                if (useStdin) {
-                    exitCode = processStdin("key-expression", subArgs, KeyExpressionCommand::parseAndEcho);
+                if (followFile != null) {
+                    exitCode = FileFollower.follow(followFile, checkpointFile, null, shard, KeyExpressionCommand::parseAndEcho);
+                } else if (useStdin) {
+                    exitCode = processStdin("key-expression", subArgs, (line, linePath) -> KeyExpressionCommand.parseAndEcho(line));
                 } else if (value != null) {
                     try {
                         KeyExpressionCommand.parseAndEcho(new String[]{value});
@@ -89,12 +152,25 @@ public class Main {
                     System.err.println("Error: use only '--verify-checksum' or '--compute-checksum', not both");
                     System.exit(1);
                 }
-                if (useStdin) {
-                    exitCode = processStdin("script-expression", subArgs, 
-                        args1 -> ScriptExpressionCommand.process(args1, finalVerifyChecksum, finalComputeChecksum));
+                if (finalChecksumOnly && finalVerifyChecksum) {
+                    System.err.println("Error: '--checksum-only' cannot be combined with '--verify-checksum' or '--locate-errors'");
+                    System.exit(1);
+                }
+                if (followFile != null) {
+                    exitCode = FileFollower.follow(followFile, checkpointFile, null, shard,
+                        args1 -> ScriptExpressionCommand.process(args1, finalVerifyChecksum, finalComputeChecksum, finalChecksumOnly, finalLocateErrors));
+                } else if (useStdin) {
+                    exitCode = processStdinScripts(subArgs, finalVerifyChecksum, finalComputeChecksum, finalChecksumOnly, finalLocateErrors);
+                } else if (value != null && finalParallel) {
+                    try {
+                        ForkJoinValidation.invoke(() -> ScriptExpressionCommand.process(new String[]{finalValue}, finalVerifyChecksum, finalComputeChecksum, finalChecksumOnly, finalLocateErrors));
+                    } catch (Exception e) {
+                        System.err.println("Error: " + e.getMessage());
+                        exitCode = 1;
+                    }
                 } else if (value != null) {
                     try {
-                        ScriptExpressionCommand.process(new String[]{value}, finalVerifyChecksum, finalComputeChecksum);
+                        ScriptExpressionCommand.process(new String[]{value}, finalVerifyChecksum, finalComputeChecksum, finalChecksumOnly, finalLocateErrors);
                     } catch (Exception e) {
                         System.err.println("Error: " + e.getMessage());
                         exitCode = 1;
@@ -111,20 +187,25 @@ public class Main {
         System.exit(exitCode);
     }
 
-    public static int processStdin(String subCommand, String[] args, RunnableWithArgs processor) {
+    public static int processStdin(String subCommand, String[] args, LineProcessor processor) {
         boolean hasDash = false;
         String path = null;
+        Shard shard = null;
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("-")) {
                 hasDash = true;
             } else if (args[i].equals("--path") && i + 1 < args.length) {
                 path = args[i + 1];
                 i++;
+            } else if (args[i].equals("--shard") && i + 1 < args.length) {
+                shard = parseShard(args[i + 1]);
+                if (shard == null) return 1;
+                i++;
             } else if (subCommand.equals("derive-key") && !args[i].equals("--path") && !args[i].startsWith("-")) {
                 continue;
-            } else if (subCommand.equals("script-expression") && !args[i].equals("--verify-checksum") && !args[i].equals("--compute-checksum") && !args[i].startsWith("-")) {
+            } else if (subCommand.equals("script-expression") && !args[i].equals("--verify-checksum") && !args[i].equals("--compute-checksum") && !args[i].equals("--checksum-only") && !args[i].startsWith("-")) {
                 continue;
-            } else if (!args[i].equals("--path") && !args[i].equals("--verify-checksum") && !args[i].equals("--compute-checksum") && args[i].startsWith("-") && !args[i].equals("-")) {
+            } else if (!args[i].equals("--path") && !args[i].equals("--verify-checksum") && !args[i].equals("--compute-checksum") && !args[i].equals("--checksum-only") && args[i].startsWith("-") && !args[i].equals("-")) {
                 System.err.println("Error: Invalid argument with '-'");
                 return 1;
             }
@@ -133,33 +214,189 @@ public class Main {
             System.err.println("Error: '-' required for stdin");
             return 1;
         }
+        if (shard != null) shard.writeHeader();
         int exitCode = 0;
-        try (Scanner scanner = new Scanner(System.in, "UTF-8")) {
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine().replace("\r", "").trim();
-                if (!line.isEmpty()) {
-                    try {
-                        String[] processArgs = path != null ? new String[]{line, "--path", path} : new String[]{line};
-                        processor.run(processArgs);
-                    } catch (Exception e) {
-                        System.err.println("Error: " + e.getMessage());
-                        exitCode = 1;
+        long lineNumber = 0;
+        String linePath = path;
+        AsciiLineReader reader = new AsciiLineReader(System.in);
+        try {
+            for (CharSequence line = reader.next(); line != null; line = reader.next()) {
+                long current = lineNumber++;
+                CharSequence value = line;
+                if (shard == null) {
+                    if (!runLine(() -> processor.run(value, linePath))) exitCode = 1;
+                } else if (shard.owns(current, line) && !shard.record(current, () -> runLine(() -> processor.run(value, linePath)))) {
+                    exitCode = 1;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            exitCode = 1;
+        }
+        if (shard != null) shard.writeTrailer(exitCode);
+        return exitCode;
+    }
+
+    // Like processStdin for script-expression, but raw(...) lines are streamed byte by byte into
+    // RawScriptStream instead of being read into a String, so their size is not bounded by memory.
+    // Locating checksum errors, hash sharding and --parallel need the whole expression, so raw lines
+    // are not streamed then. With --parallel, lines are validated PARALLEL_BATCH at a time on the
+    // fork-join pool and their output is replayed in input order.
+    public static int processStdinScripts(String[] args, boolean verifyChecksum, boolean computeChecksum, boolean checksumOnly, boolean locateErrors) {
+        boolean hasDash = false;
+        boolean parallel = false;
+        Shard shard = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-")) {
+                hasDash = true;
+            } else if (args[i].equals("--path") && i + 1 < args.length) {
+                i++;
+            } else if (args[i].equals("--shard") && i + 1 < args.length) {
+                shard = parseShard(args[i + 1]);
+                if (shard == null) return 1;
+                i++;
+            } else if (args[i].equals("--parallel")) {
+                parallel = true;
+            } else if (!args[i].equals("--verify-checksum") && !args[i].equals("--compute-checksum") && !args[i].equals("--checksum-only") && !args[i].equals("--locate-errors") && args[i].startsWith("-")) {
+                System.err.println("Error: Invalid argument with '-'");
+                return 1;
+            }
+        }
+        if (!hasDash) {
+            System.err.println("Error: '-' required for stdin");
+            return 1;
+        }
+        if (shard != null) shard.writeHeader();
+        int exitCode = 0;
+        long lineNumber = 0;
+        Predicate<CharSequence> validate = expr -> runLine(() -> ScriptExpressionCommand.process(expr, verifyChecksum, computeChecksum, checksumOnly, locateErrors));
+        List<String> batch = new ArrayList<>();
+        List<Long> batchLines = new ArrayList<>();
+        AsciiLineReader in = new AsciiLineReader(System.in);
+        LineBuffer line = new LineBuffer();
+        AsciiLineReader.Line view = new AsciiLineReader.Line();
+        try {
+            int[] next = {in.read()};
+            while (next[0] != -1) {
+                // Scanner treats \r, \n and \r\n as terminators and blank lines are skipped, so any of them ends a line
+                int b = next[0];
+                line.reset();
+                int matched = locateErrors || parallel || (shard != null && shard.byHash()) ? -1 : 0;
+                boolean raw = false;
+                boolean blank = true;
+                boolean skip = false;
+                long current = -1;
+                while (b != -1 && b != '\n' && b != '\r') {
+                    if (blank && b > ' ') {
+                        blank = false;
+                        current = lineNumber++;
+                        // Line-number shards know up front whether a line is theirs, so other lines are skipped unread
+                        skip = shard != null && !shard.byHash() && !shard.owns(current, null);
                     }
+                    if (!skip) {
+                        line.write(b);
+                        if (matched >= 0 && (matched > 0 || b > ' ')) {
+                            matched = b == RAW_PREFIX[matched] ? matched + 1 : -1;
+                            if (matched == RAW_PREFIX.length) {
+                                raw = true;
+                                b = in.read();
+                                break;
+                            }
+                        }
+                    }
+                    b = in.read();
+                }
+                next[0] = b;
+                BooleanSupplier work = null;
+                if (raw) {
+                    work = () -> streamRawLine(in, line.toByteArray(), next, verifyChecksum, computeChecksum, checksumOnly);
+                } else if (!blank && !skip) {
+                    CharSequence expr = line.slice(view);
+                    if (parallel && (shard == null || shard.owns(current, expr))) {
+                        batch.add(expr.toString());
+                        batchLines.add(current);
+                        if (batch.size() == PARALLEL_BATCH && runBatch(batch, batchLines, shard, validate) != 0) {
+                            exitCode = 1;
+                        }
+                    } else if (shard == null || shard.owns(current, expr)) {
+                        work = () -> validate.test(expr);
+                    }
+                }
+                if (work != null) {
+                    boolean ok = shard == null ? work.getAsBoolean() : shard.record(current, work);
+                    if (!ok) exitCode = 1;
+                }
+                if (next[0] != -1) {
+                    next[0] = in.read();
                 }
             }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error: " + e.getMessage());
+            exitCode = 1;
+        }
+        if (runBatch(batch, batchLines, shard, validate) != 0) {
+            exitCode = 1;
         }
+        if (shard != null) shard.writeTrailer(exitCode);
         return exitCode;
     }
 
-    public static int processStdinBatch(String subCommand, String[] args, RunnableWithArgs processor) {
+    // Validates a batch of lines on the fork-join pool, prints their output in order and empties the batch
+    private static int runBatch(List<String> batch, List<Long> batchLines, Shard shard, Predicate<CharSequence> validate) {
+        int exitCode = 0;
+        OutputCapture.Capture[] captures = ForkJoinValidation.captureAll(batch, validate);
+        for (int i = 0; i < captures.length; i++) {
+            boolean ok;
+            if (shard == null) {
+                captures[i].replay();
+                ok = captures[i].ok();
+            } else {
+                ok = shard.record(batchLines.get(i), captures[i]);
+            }
+            if (!ok) exitCode = 1;
+        }
+        batch.clear();
+        batchLines.clear();
+        return exitCode;
+    }
+
+    // Feeds the rest of a raw(...) line into RawScriptStream; next holds the byte read after the head
+    // and is left on the byte that ended the line
+    private static boolean streamRawLine(AsciiLineReader in, byte[] head, int[] next, boolean verifyChecksum, boolean computeChecksum, boolean checksumOnly) {
+        try (RawScriptStream stream = new RawScriptStream(verifyChecksum, computeChecksum, checksumOnly)) {
+            for (byte b : head) {
+                stream.write(b);
+            }
+            int b = next[0];
+            while (b != -1 && b != '\n' && b != '\r') {
+                stream.write(b);
+                b = in.read();
+            }
+            next[0] = b;
+            stream.finish(System.out);
+            return true;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static int processStdinBatch(String subCommand, String[] args, LineFunction processor) {
         boolean hasDash = false;
         String path = null;
+        Shard shard = null;
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("-")) {
                 hasDash = true;
             } else if (args[i].equals("--path") && i + 1 < args.length) {
                 path = args[i + 1];
                 i++;
+            } else if (args[i].equals("--shard") && i + 1 < args.length) {
+                shard = parseShard(args[i + 1]);
+                if (shard == null) return 1;
+                i++;
             } else if (!args[i].equals("--path") && subCommand.equals("derive-key") && !args[i].startsWith("-")) {
                 continue;
             } else if (!args[i].equals("--path") && args[i].startsWith("-")) {
@@ -171,28 +408,69 @@ public class Main {
             System.err.println("Error: '-' required for stdin");
             return 1;
         }
+        // The whole batch is held for deduplication, so each line is kept as a String
         List<String> lines = new ArrayList<>();
-        try (Scanner scanner = new Scanner(System.in, "UTF-8")) {
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine().replace("\r", "").trim();
-                if (!line.isEmpty()) {
-                    lines.add(line);
-                }
+        AsciiLineReader reader = new AsciiLineReader(System.in);
+        try {
+            for (CharSequence line = reader.next(); line != null; line = reader.next()) {
+                lines.add(line.toString());
             }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
         }
+        if (shard != null) shard.writeHeader();
         int exitCode = 0;
-        for (String line : lines) {
-            String[] processArgs = path != null ? new String[]{line, "--path", path} : new String[]{line};
-            try {
-                processor.run(processArgs);
-            } catch (Exception e) {
-                System.err.println("Error: " + e.getMessage());
-                exitCode = 1;
+        // Every line shares the same --path, so identical values within a window produce the same
+        // output line or error; they are derived once and the result is printed at each position
+        for (int start = 0; start < lines.size(); start += DEDUP_WINDOW) {
+            int end = Math.min(start + DEDUP_WINDOW, lines.size());
+            boolean[] owned = new boolean[end - start];
+            Map<String, Integer> occurrences = new HashMap<>();
+            for (int n = start; n < end; n++) {
+                owned[n - start] = shard == null || shard.owns(n, lines.get(n));
+                if (owned[n - start]) occurrences.merge(lines.get(n), 1, Integer::sum);
+            }
+            Map<String, LineResult> shared = new HashMap<>();
+            for (int n = start; n < end; n++) {
+                if (!owned[n - start]) continue;
+                String line = lines.get(n);
+                String linePath = path;
+                Runnable work = () -> System.out.println(occurrences.get(line) > 1
+                    ? shared.computeIfAbsent(line, l -> LineResult.of(processor, l, linePath)).get()
+                    : processor.apply(line, linePath));
+                boolean ok = shard == null ? runLine(work) : shard.record(n, () -> runLine(work));
+                if (!ok) exitCode = 1;
             }
         }
+        if (shard != null) shard.writeTrailer(exitCode);
         return exitCode;
     }
 
+    // Runs one input line, reporting a failure as "Error: ..." on stderr
+    static boolean runLine(RunnableWithArgs processor, String[] processArgs) {
+        return runLine(() -> processor.run(processArgs));
+    }
+
+    static boolean runLine(Runnable work) {
+        try {
+            work.run();
+            return true;
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static Shard parseShard(String spec) {
+        try {
+            return Shard.parse(spec);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return null;
+        }
+    }
+
     private static String getPath(String[] args) {
         for (int i = 0; i < args.length - 1; i++) {
             if (args[i].equals("--path")) {
@@ -206,6 +484,49 @@ public class Main {
     interface RunnableWithArgs {
         void run(String[] args);
     }
+
+    // Handles one stdin line; line may be a view into the reader's buffer, valid only during the call
+    @FunctionalInterface
+    interface LineProcessor {
+        void run(CharSequence line, String path);
+    }
+
+    // Produces the output line for one stdin line, or throws IllegalArgumentException
+    @FunctionalInterface
+    interface LineFunction {
+        String apply(CharSequence line, String path);
+    }
+
+    // The output line or error of a LineFunction, kept so duplicate lines need not be processed again
+    private static final class LineResult {
+        private final String output;
+        private final IllegalArgumentException error;
+
+        private LineResult(String output, IllegalArgumentException error) {
+            this.output = output;
+            this.error = error;
+        }
+
+        static LineResult of(LineFunction processor, String line, String path) {
+            try {
+                return new LineResult(processor.apply(line, path), null);
+            } catch (IllegalArgumentException e) {
+                return new LineResult(null, e);
+            }
+        }
+
+        String get() {
+            if (error != null) throw error;
+            return output;
+        }
+    }
+
+    // Exposes its buffer so a line can be viewed in place instead of copied out with toByteArray
+    private static final class LineBuffer extends ByteArrayOutputStream {
+        CharSequence slice(AsciiLineReader.Line view) {
+            return AsciiLineReader.slice(buf, 0, count, view);
+        }
+    }
 }
 
 //to sign commit
\ No newline at end of file
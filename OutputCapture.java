@@ -0,0 +1,156 @@
+package com.pv286.bip380;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+// Records what the commands print for one input line. Once installed, System.out and System.err
+// route writes from a capturing thread into that thread's Sink (usually a Capture) and pass
+// everything else through, so several threads can capture at once without interleaving their lines.
+final class OutputCapture {
+    private static final ThreadLocal<Sink> CURRENT = new ThreadLocal<>();
+    private static PrintStream stdout;
+    private static PrintStream stderr;
+
+    private OutputCapture() {
+    }
+
+    static synchronized void install() {
+        if (stdout != null) return;
+        stdout = System.out;
+        stderr = System.err;
+        // Pass-through writes keep the flushing behaviour of the stream they land on
+        System.setOut(new PrintStream(new Tap(Capture.STDOUT, stdout), false));
+        System.setErr(new PrintStream(new Tap(Capture.STDERR, stderr), false));
+    }
+
+    // The streams that were in place before install
+    static PrintStream stdout() {
+        return stdout != null ? stdout : System.out;
+    }
+
+    static PrintStream stderr() {
+        return stderr != null ? stderr : System.err;
+    }
+
+    // Runs task on this thread with its output captured; ok is the task's result
+    static Capture capture(BooleanSupplier task) {
+        Capture capture = new Capture();
+        capture.ok = route(task, capture);
+        return capture;
+    }
+
+    // Runs task on this thread with its output sent to sink as it is written; returns the task's result
+    static boolean route(BooleanSupplier task, Sink sink) {
+        install();
+        Sink previous = CURRENT.get();
+        CURRENT.set(sink);
+        try {
+            return task.getAsBoolean();
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            if (previous != null) CURRENT.set(previous);
+            else CURRENT.remove();
+        }
+    }
+
+    // Receives a routed thread's writes, tagged with the stream they were made to
+    interface Sink {
+        void write(char stream, byte[] b, int off, int len);
+    }
+
+    static final class Capture implements Sink {
+        static final char STDOUT = 'O';
+        static final char STDERR = 'E';
+
+        private final List<Character> streams = new ArrayList<>();
+        private final List<byte[]> segments = new ArrayList<>();
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private char pendingStream;
+        private boolean ok;
+
+        boolean ok() {
+            return ok;
+        }
+
+        @Override
+        public void write(char stream, byte[] b, int off, int len) {
+            if (pending.size() > 0 && stream != pendingStream) {
+                closeSegment();
+            }
+            pendingStream = stream;
+            pending.write(b, off, len);
+        }
+
+        private void closeSegment() {
+            if (pending.size() == 0) return;
+            streams.add(pendingStream);
+            segments.add(pending.toByteArray());
+            pending.reset();
+        }
+
+        // Writes the captured output to the original streams, in the order it was produced
+        void replay() {
+            closeSegment();
+            for (int i = 0; i < segments.size(); i++) {
+                PrintStream target = streams.get(i) == STDOUT ? stdout() : stderr();
+                byte[] segment = segments.get(i);
+                target.write(segment, 0, segment.length);
+            }
+        }
+
+        // Calls sink once per captured line with its stream tag; line excludes the newline
+        void forEachLine(LineSink sink) {
+            closeSegment();
+            for (int i = 0; i < segments.size(); i++) {
+                byte[] segment = segments.get(i);
+                int start = 0;
+                for (int j = 0; j <= segment.length; j++) {
+                    if (j == segment.length ? start < j : segment[j] == '\n') {
+                        sink.accept(streams.get(i), segment, start, j - start);
+                        start = j + 1;
+                    }
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface LineSink {
+        void accept(char stream, byte[] line, int off, int len);
+    }
+
+    private static final class Tap extends OutputStream {
+        private final char stream;
+        private final PrintStream target;
+
+        Tap(char stream, PrintStream target) {
+            this.stream = stream;
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            Sink sink = CURRENT.get();
+            if (sink != null) {
+                sink.write(stream, b, off, len);
+            } else {
+                target.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (CURRENT.get() == null) target.flush();
+        }
+    }
+}
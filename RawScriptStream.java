@@ -0,0 +1,367 @@
+package com.pv286.bip380;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// Validates and checksums a single raw(...) expression fed one byte at a time, with the same
+// rules and error order as ScriptExpressionCommand.process but constant memory. The echoed
+// script is staged (spilling to a temp file past MEMORY_LIMIT) so nothing is printed for invalid lines.
+final class RawScriptStream implements Closeable {
+    private static final String RAW_PREFIX = "raw(";
+    private static final String CHECKSUM_CHARSET = DescriptorChecksum.CHECKSUM_CHARSET;
+    // Scripts up to this many characters are kept in memory and shown in full in error messages
+    static final int MEMORY_LIMIT = 1 << 16;
+
+    private static final int LEAD = 0;
+    private static final int PREFIX = 1;
+    private static final int BODY = 2;
+    private static final int AFTER = 3;
+    private static final int CHECKSUM = 4;
+
+    private final boolean verifyChecksum;
+    private final boolean computeChecksum;
+    private final boolean checksumOnly;
+    private final DescriptorChecksum descsum = new DescriptorChecksum();
+    private final SpillBuffer echo;
+    private final StringBuilder preview = new StringBuilder();
+    private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer utf8In = ByteBuffer.allocate(8);
+    private final CharBuffer utf8Out = CharBuffer.allocate(8);
+
+    private int state = LEAD;
+    private int prefixIndex;
+    private long scriptLength;
+    private boolean invalidFormat;
+    private boolean bodyEmpty = true;
+    private boolean hasHex;
+    private boolean hasInvalidChar;
+    private char invalidChar;
+
+    // Lines are trimmed, so a whitespace run only belongs to the script once something follows it
+    private long pendingSpaces;
+    private boolean pendingBlank;
+    private boolean pendingControl;
+    private boolean hasPendingInvalid;
+    private char pendingInvalid;
+    private int previewMark;
+
+    private boolean hasChecksum;
+    private long checksumLength;
+    private long pendingChecksumSpaces;
+    private boolean checksumInvalid;
+    private final StringBuilder checksum = new StringBuilder(8);
+
+    RawScriptStream(boolean verifyChecksum, boolean computeChecksum, boolean checksumOnly) {
+        this.verifyChecksum = verifyChecksum;
+        this.computeChecksum = computeChecksum;
+        this.checksumOnly = checksumOnly;
+        this.echo = verifyChecksum && !checksumOnly ? null : new SpillBuffer();
+    }
+
+    void write(int b) throws IOException {
+        if (b < 0x80 && utf8In.position() == 0) {
+            accept((char) b);
+            return;
+        }
+        utf8In.put((byte) b);
+        decode(false);
+    }
+
+    // Decodes like new String(bytes, UTF_8): malformed input becomes U+FFFD, so messages and
+    // character counts match the String path
+    private void decode(boolean endOfInput) throws IOException {
+        utf8In.flip();
+        utf8.decode(utf8In, utf8Out, endOfInput);
+        if (endOfInput) utf8.flush(utf8Out);
+        utf8In.compact();
+        utf8Out.flip();
+        while (utf8Out.hasRemaining()) {
+            accept(utf8Out.get());
+        }
+        utf8Out.clear();
+    }
+
+    private void accept(char c) throws IOException {
+        if (state == CHECKSUM) {
+            checksumChar(c);
+            return;
+        }
+        if (state == LEAD) {
+            if (c <= ' ') return;
+            state = PREFIX;
+        }
+        if (c <= ' ') {
+            holdPending(c);
+            return;
+        }
+        commitPending();
+        if (c == '#') {
+            if (state != AFTER) invalidFormat = true;
+            state = CHECKSUM;
+            hasChecksum = true;
+            return;
+        }
+        scriptChar(c);
+        switch (state) {
+            case PREFIX:
+                if (c != RAW_PREFIX.charAt(prefixIndex)) {
+                    invalidFormat = true;
+                    state = BODY;
+                } else if (++prefixIndex == RAW_PREFIX.length()) {
+                    state = BODY;
+                }
+                break;
+            case BODY:
+                if (ScriptExpressionCommand.isHexDigit(c)) {
+                    hasHex = true;
+                    bodyEmpty = false;
+                } else if (c == ')') {
+                    if (bodyEmpty) invalidFormat = true;
+                    state = AFTER;
+                } else {
+                    invalidFormat = true;
+                }
+                break;
+            default:
+                invalidFormat = true;
+        }
+    }
+
+    void finish(PrintStream out) throws IOException {
+        if (utf8In.position() > 0) {
+            decode(true);
+        }
+        if (pendingBlank) {
+            preview.setLength(previewMark);
+        }
+        if (!hasChecksum && state != AFTER) {
+            invalidFormat = true;
+        }
+        String script = ScriptExpressionCommand.abbreviate(preview);
+        String expr = hasChecksum ? script + "#" + checksum : script;
+
+        if (checksumOnly) {
+            checkScript(script);
+            checkCharset();
+            printScript(out);
+            out.println("#" + descsum.checksum());
+        } else if (verifyChecksum) {
+            if (!hasChecksum) {
+                throw new IllegalArgumentException(expr + " (no checksum present)");
+            }
+            if (checksumLength == 0) {
+                throw new IllegalArgumentException(expr + " (missing checksum)");
+            }
+            checkChecksumFormat();
+            checkScript(script);
+            checkCharset();
+            if (!descsum.verify(checksum)) {
+                throw new IllegalArgumentException("Error in payload: " + expr);
+            }
+            out.println("OK");
+        } else if (computeChecksum) {
+            checkScript(script);
+            checkCharset();
+            printScript(out);
+            out.println("#" + descsum.checksum());
+        } else {
+            if (hasChecksum) {
+                checkChecksumFormat();
+                checkScript(script);
+                checkCharset();
+                if (!descsum.verify(checksum)) {
+                    throw new IllegalArgumentException("Error in payload: " + expr);
+                }
+            } else {
+                checkScript(script);
+            }
+            printScript(out);
+            out.println(hasChecksum ? "#" + checksum : "");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (echo != null) echo.close();
+    }
+
+    private void scriptChar(char c) throws IOException {
+        if (preview.length() <= MEMORY_LIMIT) preview.append(c);
+        // Only ASCII can appear in a valid raw script, and any other character fails validation
+        // before the echo is printed, so it is not staged
+        if (echo != null && c < 0x80) {
+            echo.write(c);
+            scriptLength = echo.length();
+        }
+        if (DescriptorChecksum.inputIndex(c) == -1) {
+            if (!hasInvalidChar) {
+                hasInvalidChar = true;
+                invalidChar = c;
+            }
+        } else if (!hasInvalidChar) {
+            descsum.update(c);
+        }
+    }
+
+    private void holdPending(char c) throws IOException {
+        if (!pendingBlank) {
+            pendingBlank = true;
+            previewMark = preview.length();
+        }
+        if (c == ' ') {
+            pendingSpaces++;
+        } else {
+            if (c != '\t') pendingControl = true;
+            if (!hasPendingInvalid) {
+                hasPendingInvalid = true;
+                pendingInvalid = c;
+            }
+        }
+        if (preview.length() <= MEMORY_LIMIT) preview.append(c);
+        if (echo != null) echo.write(c);
+    }
+
+    private void commitPending() {
+        if (!pendingBlank) return;
+        if (state == PREFIX) {
+            invalidFormat = true;
+            state = BODY;
+        } else if (state == BODY) {
+            if (pendingControl) invalidFormat = true;
+            bodyEmpty = false;
+        }
+        if (hasPendingInvalid && !hasInvalidChar) {
+            hasInvalidChar = true;
+            invalidChar = pendingInvalid;
+        }
+        if (!hasInvalidChar) {
+            for (long i = 0; i < pendingSpaces; i++) {
+                descsum.update(' ');
+            }
+        }
+        scriptLength = echo != null ? echo.length() : 0;
+        pendingSpaces = 0;
+        pendingBlank = false;
+        pendingControl = false;
+        hasPendingInvalid = false;
+    }
+
+    private void checksumChar(char c) {
+        if (c <= ' ') {
+            pendingChecksumSpaces++;
+            return;
+        }
+        if (pendingChecksumSpaces > 0) {
+            checksumLength += pendingChecksumSpaces;
+            checksumInvalid = true;
+            pendingChecksumSpaces = 0;
+        }
+        checksumLength++;
+        if (CHECKSUM_CHARSET.indexOf(c) == -1) {
+            checksumInvalid = true;
+        }
+        if (checksum.length() < 8) {
+            checksum.append(c);
+        }
+    }
+
+    private void checkChecksumFormat() {
+        boolean wellFormed = checksumLength == 8 && !checksumInvalid;
+        if (checksumLength < 8 && !wellFormed) {
+            throw new IllegalArgumentException("Too Short Checksum (" + checksumLength + " chars): must be 8 characters from " + CHECKSUM_CHARSET);
+        } else if (checksumLength > 8 && !wellFormed) {
+            throw new IllegalArgumentException("Too Long Checksum (" + checksumLength + " chars): must be 8 characters from " + CHECKSUM_CHARSET);
+        } else if (checksumLength == 8 && !wellFormed) {
+            throw new IllegalArgumentException("Invalid checksum format: must be 8 characters from " + CHECKSUM_CHARSET);
+        }
+    }
+
+    private void checkScript(String script) {
+        if (invalidFormat) {
+            throw new IllegalArgumentException(script + " (invalid script expression format)");
+        }
+        if (!hasHex) {
+            throw new IllegalArgumentException(script + " (invalid characters in payload)");
+        }
+    }
+
+    private void checkCharset() {
+        if (hasInvalidChar) {
+            throw new IllegalArgumentException("Invalid character in script: " + invalidChar);
+        }
+    }
+
+    private void printScript(PrintStream out) throws IOException {
+        echo.writeTo(out, scriptLength);
+    }
+
+    // Byte buffer that keeps the first MEMORY_LIMIT bytes in memory and spills the rest to an owner-only
+    // temp file. The memory part starts small and grows as needed, since most raw lines are short.
+    private static final class SpillBuffer implements Closeable {
+        private static final int INITIAL_CAPACITY = 64;
+
+        private byte[] memory = new byte[0];
+        private long length;
+        private Path file;
+        private OutputStream fileOut;
+
+        void write(int b) throws IOException {
+            if (length < MEMORY_LIMIT) {
+                if (length == memory.length) {
+                    memory = Arrays.copyOf(memory, Math.min(Math.max(INITIAL_CAPACITY, memory.length * 2), MEMORY_LIMIT));
+                }
+                memory[(int) length] = (byte) b;
+            } else {
+                if (fileOut == null) {
+                    file = Files.createTempFile("bip380-raw", ".tmp");
+                    fileOut = new BufferedOutputStream(Files.newOutputStream(file));
+                }
+                fileOut.write(b);
+            }
+            length++;
+        }
+
+        long length() {
+            return length;
+        }
+
+        void writeTo(OutputStream out, long count) throws IOException {
+            out.write(memory, 0, (int) Math.min(count, MEMORY_LIMIT));
+            long remaining = count - MEMORY_LIMIT;
+            if (remaining <= 0) return;
+            fileOut.flush();
+            byte[] chunk = new byte[8192];
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                while (remaining > 0) {
+                    int n = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                    if (n == -1) break;
+                    out.write(chunk, 0, n);
+                    remaining -= n;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileOut != null) {
+                fileOut.close();
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -1,66 +1,125 @@
 package com.pv286.bip380;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class ScriptExpressionCommand {
-    private static final String INPUT_CHARSET = "0123456789()[],'/*abcdefgh@:$%{}IJKLMNOPQRSTUVWXYZ&+-.;<=>?!^_|~ijklmnopqrstuvwxyzABCDEFGH`#\"\\ ";
-    private static final String CHECKSUM_CHARSET = "qpzry9x8gf2tvdw0s3jn54khce6mua7l";
-    private static final long[] GENERATOR = {0xf5dee51989L, 0xa9fdca3312L, 0x1bab10e32dL, 0x3706b1677aL, 0x644d626ffdL};
+    private static final String CHECKSUM_CHARSET = DescriptorChecksum.CHECKSUM_CHARSET;
+    private static final String RAW_PREFIX = "raw(";
+
+    // Syntax-only counterparts of the shapes accepted by validateScript; no key material is decoded
+    private static final Pattern PK_SYNTAX = Pattern.compile("(pkh?)\\(([^)]+)\\)");
+    private static final Pattern SH_PK_SYNTAX = Pattern.compile("sh\\((pkh?)\\(([^)]+)\\)\\)");
+    private static final Pattern MULTI_SYNTAX = Pattern.compile("multi\\((\\d+),([^)]+)\\)");
+    private static final Pattern SH_MULTI_SYNTAX = Pattern.compile("sh\\(multi\\((\\d+),([^)]+)\\)\\)");
 
     public static void process(String[] args, boolean verifyChecksum, boolean computeChecksum) {
-        String expr = args[0];
-        int hashIndex = expr.indexOf("#");
-        String script = hashIndex == -1 ? expr : expr.substring(0, hashIndex);
-        String providedChecksum = hashIndex == -1 ? null : expr.substring(hashIndex + 1);
+        process(args, verifyChecksum, computeChecksum, false);
+    }
+
+    public static void process(String[] args, boolean verifyChecksum, boolean computeChecksum, boolean checksumOnly) {
+        process(args, verifyChecksum, computeChecksum, checksumOnly, false);
+    }
+
+    public static void process(String[] args, boolean verifyChecksum, boolean computeChecksum, boolean checksumOnly, boolean locateErrors) {
+        process((CharSequence) args[0], verifyChecksum, computeChecksum, checksumOnly, locateErrors);
+    }
+
+    // Works on a view of the input line: syntax, raw payloads and checksums are checked in place, and a
+    // String is only built for key validation, error messages and --locate-errors
+    public static void process(CharSequence expr, boolean verifyChecksum, boolean computeChecksum, boolean checksumOnly, boolean locateErrors) {
+        int hashIndex = indexOf(expr, '#');
+        CharSequence script = hashIndex == -1 ? expr : expr.subSequence(0, hashIndex);
+        CharSequence providedChecksum = hashIndex == -1 ? null : expr.subSequence(hashIndex + 1, expr.length());
 
-        if (verifyChecksum) {
+        if (checksumOnly) {
+            // Must stay clear of KeyExpressionCommand so bitcoinj/BouncyCastle are never class-loaded
+            validateSyntax(script);
+            AsciiLineReader.println(System.out, script, "#" + DescriptorChecksum.compute(script));
+        } else if (verifyChecksum) {
             if (providedChecksum == null) {
-                throw new IllegalArgumentException(expr + " (no checksum present)");
+                throw new IllegalArgumentException(abbreviate(expr) + " (no checksum present)");
             }
-            if (providedChecksum.isEmpty()) {
-                throw new IllegalArgumentException(expr + " (missing checksum)");
+            if (providedChecksum.length() == 0) {
+                throw new IllegalArgumentException(abbreviate(script) + "# (missing checksum)");
             }
-            if (providedChecksum.length() < 8 && !providedChecksum.matches("[" + CHECKSUM_CHARSET + "]{8}")) {
-                throw new IllegalArgumentException("Too Short Checksum (" + providedChecksum.length() + " chars): must be 8 characters from " + CHECKSUM_CHARSET);
-            } else if (providedChecksum.length() > 8 && !providedChecksum.matches("[" + CHECKSUM_CHARSET + "]{8}")) {
-                throw new IllegalArgumentException("Too Long Checksum (" + providedChecksum.length() + " chars): must be 8 characters from " + CHECKSUM_CHARSET);
-            } else if (providedChecksum.length() == 8 && !providedChecksum.matches("[" + CHECKSUM_CHARSET + "]{8}")) {
-                throw new IllegalArgumentException("Invalid checksum format: must be 8 characters from " + CHECKSUM_CHARSET);
+            validateChecksumFormat(providedChecksum);
+            if (locateErrors && !verifyChecksum(script, providedChecksum)) {
+                // A typo can break a key's Base58Check checksum or the descriptor's structure, so candidates
+                // are searched for before either is validated; a syntax error is only reported when no
+                // candidate fixes it
+                if (!reportCandidates(script.toString(), providedChecksum.toString())) {
+                    validateSyntax(script);
+                }
+                throw new IllegalArgumentException("Error in payload: " + abbreviate(script) + "#" + providedChecksum);
             }
             validateScript(script);
             if (!verifyChecksum(script, providedChecksum)) {
-                throw new IllegalArgumentException("Error in payload: " + expr);
+                throw new IllegalArgumentException("Error in payload: " + abbreviate(script) + "#" + providedChecksum);
             }
             System.out.println("OK");
         } else if (computeChecksum) {
             validateScript(script);
             String newChecksum = computeChecksum(script);
-            System.out.println(script + "#" + newChecksum);
+            AsciiLineReader.println(System.out, script, "#" + newChecksum);
         } else {
             if (providedChecksum != null) {
-                if (providedChecksum.length() < 8 && !providedChecksum.matches("[" + CHECKSUM_CHARSET + "]{8}")) {
-                    throw new IllegalArgumentException("Too Short Checksum (" + providedChecksum.length() + " chars): must be 8 characters from " + CHECKSUM_CHARSET);
-                } else if (providedChecksum.length() > 8 && !providedChecksum.matches("[" + CHECKSUM_CHARSET + "]{8}")) {
-                    throw new IllegalArgumentException("Too Long Checksum (" + providedChecksum.length() + " chars): must be 8 characters from " + CHECKSUM_CHARSET);
-                } else if (providedChecksum.length() == 8 && !providedChecksum.matches("[" + CHECKSUM_CHARSET + "]{8}")) {
-                    throw new IllegalArgumentException("Invalid checksum format: must be 8 characters from " + CHECKSUM_CHARSET);
-                }
+                validateChecksumFormat(providedChecksum);
                 validateScript(script);
                 if (!verifyChecksum(script, providedChecksum)) {
-                    throw new IllegalArgumentException("Error in payload: " + expr);
+                    throw new IllegalArgumentException("Error in payload: " + abbreviate(script) + "#" + providedChecksum);
                 }
             } else {
                 validateScript(script);
             }
-            System.out.println(expr);
+            AsciiLineReader.println(System.out, expr);
+        }
+    }
+
+    // Error messages show a script in full unless it outgrows the memory RawScriptStream stages it in,
+    // so a line reports the same text whether or not it was streamed
+    static String abbreviate(CharSequence script) {
+        if (script.length() <= RawScriptStream.MEMORY_LIMIT) {
+            return script.toString();
+        }
+        return script.subSequence(0, RawScriptStream.MEMORY_LIMIT) + "...";
+    }
+
+    private static int indexOf(CharSequence s, char c) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == c) return i;
         }
+        return -1;
     }
 
-    private static void validateScript(String script) {
-        String trimmed = script.replaceAll("[ \t]+", " ").trim();
+    private static void validateChecksumFormat(CharSequence checksum) {
+        if (isChecksumFormat(checksum)) {
+            return;
+        }
+        if (checksum.length() < 8) {
+            throw new IllegalArgumentException("Too Short Checksum (" + checksum.length() + " chars): must be 8 characters from " + CHECKSUM_CHARSET);
+        } else if (checksum.length() > 8) {
+            throw new IllegalArgumentException("Too Long Checksum (" + checksum.length() + " chars): must be 8 characters from " + CHECKSUM_CHARSET);
+        }
+        throw new IllegalArgumentException("Invalid checksum format: must be 8 characters from " + CHECKSUM_CHARSET);
+    }
+
+    // Same as matching [CHECKSUM_CHARSET]{8}
+    private static boolean isChecksumFormat(CharSequence checksum) {
+        if (checksum.length() != 8) return false;
+        for (int i = 0; i < 8; i++) {
+            if (CHECKSUM_CHARSET.indexOf(checksum.charAt(i)) == -1) return false;
+        }
+        return true;
+    }
+
+    private static void validateScript(CharSequence script) {
+        if (isRawScript(script)) {
+            validateRaw(script);
+            return;
+        }
+        String trimmed = script.toString().replaceAll("[ \t]+", " ").trim();
         if (trimmed.matches("pk\\([^)]+\\)")) {
             validateKeyInScript(trimmed, "pk");
         } else if (trimmed.matches("pkh\\([^)]+\\)")) {
@@ -72,17 +131,125 @@ public class ScriptExpressionCommand {
         } else if (trimmed.matches("sh\\(pkh\\([^)]+\\)\\)")) {
             validateKeyInScript(trimmed.substring(3, trimmed.length() - 1), "pkh");
         } else if (trimmed.matches("sh\\(multi\\(\\d+,[^)]+\\)\\)")) {
-            validateMulti(trimmed);
-        } else if (trimmed.matches("raw\\([ 0-9a-fA-F]+\\)")) {
-            String hexContent = trimmed.substring(4, trimmed.length() - 1).replaceAll("\\s+", "");
-            if (!hexContent.matches("[0-9a-fA-F]+")) {
-                throw new IllegalArgumentException(script + " (invalid characters in payload)");
+            validateMulti(trimmed.substring(3, trimmed.length() - 1));
+        } else {
+            throw new IllegalArgumentException(abbreviate(script) + " (invalid script expression format)");
+        }
+    }
+
+    // Candidates must pass the full validation, keys included, so a fix that only repairs the
+    // descriptor checksum but leaves a key's Base58Check checksum broken is not suggested
+    // Returns false if no candidate was found
+    private static boolean reportCandidates(String script, String providedChecksum) {
+        List<ChecksumErrorLocator.Candidate> candidates = ChecksumErrorLocator.locate(script, providedChecksum, ScriptExpressionCommand::isValid);
+        if (candidates.isEmpty()) {
+            System.out.println("No single or double character substitution matches the checksum");
+        }
+        for (ChecksumErrorLocator.Candidate candidate : candidates) {
+            System.out.println("Candidate at " + candidate.describe() + ": " + candidate.descriptor());
+        }
+        return !candidates.isEmpty();
+    }
+
+    private static boolean isValid(String script) {
+        try {
+            validateSyntax(script);
+            validateScript(script);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static void validateSyntax(CharSequence script) {
+        if (isRawScript(script)) {
+            validateRaw(script);
+            return;
+        }
+        CharSequence trimmed = trim(script);
+        Matcher pk = PK_SYNTAX.matcher(trimmed);
+        if (!pk.matches()) {
+            pk = SH_PK_SYNTAX.matcher(trimmed);
+        }
+        if (pk.matches()) {
+            if (pk.group(2).trim().isEmpty()) {
+                throw new IllegalArgumentException(abbreviate(script) + " (empty key in " + pk.group(1) + ")");
+            }
+            return;
+        }
+        Matcher multi = MULTI_SYNTAX.matcher(trimmed);
+        if (!multi.matches()) {
+            multi = SH_MULTI_SYNTAX.matcher(trimmed);
+        }
+        if (multi.matches()) {
+            int k = Integer.parseInt(multi.group(1));
+            String[] keys = multi.group(2).split(",");
+            if (k <= 0 || k > keys.length) {
+                throw new IllegalArgumentException(abbreviate(script) + " (invalid k in multi: must be 0 < k <= n)");
+            }
+            for (String key : keys) {
+                if (key.trim().isEmpty()) {
+                    throw new IllegalArgumentException(abbreviate(script) + " (empty key in multi)");
+                }
             }
         } else {
-            throw new IllegalArgumentException(script + " (invalid script expression format)");
+            throw new IllegalArgumentException(abbreviate(script) + " (invalid script expression format)");
+        }
+    }
+
+    // Like String.trim, but returns a view
+    private static CharSequence trim(CharSequence s) {
+        int start = 0;
+        int end = s.length();
+        while (start < end && s.charAt(start) <= ' ') start++;
+        while (end > start && s.charAt(end - 1) <= ' ') end--;
+        return s.subSequence(start, end);
+    }
+
+    static boolean isRawScript(CharSequence script) {
+        int start = 0;
+        while (start < script.length() && script.charAt(start) <= ' ') {
+            start++;
+        }
+        if (script.length() - start < RAW_PREFIX.length()) {
+            return false;
+        }
+        for (int i = 0; i < RAW_PREFIX.length(); i++) {
+            if (script.charAt(start + i) != RAW_PREFIX.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Single pass over the trimmed script; raw payloads can be megabytes, so no normalized copies are made
+    private static void validateRaw(CharSequence script) {
+        int start = 0;
+        int end = script.length();
+        while (start < end && script.charAt(start) <= ' ') start++;
+        while (end > start && script.charAt(end - 1) <= ' ') end--;
+        int bodyStart = start + RAW_PREFIX.length();
+        if (end - 1 <= bodyStart || script.charAt(end - 1) != ')') {
+            throw new IllegalArgumentException(abbreviate(script) + " (invalid script expression format)");
+        }
+        boolean hasHex = false;
+        for (int i = bodyStart; i < end - 1; i++) {
+            char c = script.charAt(i);
+            if (isHexDigit(c)) {
+                hasHex = true;
+            } else if (c != ' ' && c != '\t') {
+                throw new IllegalArgumentException(abbreviate(script) + " (invalid script expression format)");
+            }
+        }
+        if (!hasHex) {
+            throw new IllegalArgumentException(abbreviate(script) + " (invalid characters in payload)");
         }
     }
 
+    static boolean isHexDigit(int c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
     private static void validateKeyInScript(String script, String prefix) {
         String key = script.substring(prefix.length() + 1, script.length() - 1).trim();
         KeyExpressionCommand.validateKeyExpression(key);
@@ -92,78 +259,32 @@ public class ScriptExpressionCommand {
         Pattern pattern = Pattern.compile("multi\\((\\d+),([^)]+)\\)");
         Matcher matcher = pattern.matcher(script);
         if (!matcher.matches()) {
-            throw new IllegalArgumentException(script + " (invalid multi format)");
+            throw new IllegalArgumentException(abbreviate(script) + " (invalid multi format)");
         }
         int k = Integer.parseInt(matcher.group(1));
         String[] keys = matcher.group(2).split(",");
         int n = keys.length;
         if (k <= 0 || k > n) {
-            throw new IllegalArgumentException(script + " (invalid k in multi: must be 0 < k <= n)");
+            throw new IllegalArgumentException(abbreviate(script) + " (invalid k in multi: must be 0 < k <= n)");
+        }
+        if (n > 1 && ForkJoinValidation.inPool()) {
+            // Under --parallel, cosigner keys are split into their own tasks; the first bad key in order is reported
+            RuntimeException failure = ForkJoinValidation.firstFailure(keys, key -> KeyExpressionCommand.validateKeyExpression(key.trim()));
+            if (failure != null) throw failure;
+            return;
         }
         for (String key : keys) {
             KeyExpressionCommand.validateKeyExpression(key.trim());
         }
     }
 
-    private static boolean verifyChecksum(String script, String checksum) {
-        List<Integer> symbols = descsumExpand(script);
-        for (char c : checksum.toCharArray()) {
-            int value = CHECKSUM_CHARSET.indexOf(c);
-            if (value == -1) return false;
-            symbols.add(value);
-        }
-        long polymod = descsumPolymod(symbols);
-        return polymod == 1;
-    }
-
-    private static String computeChecksum(String script) {
-        List<Integer> symbols = descsumExpand(script);
-        for (int i = 0; i < 8; i++) {
-            symbols.add(0); // Placeholder for checksum
-        }
-        long checksumPolymod = descsumPolymod(symbols) ^ 1;
-        char[] checksum = new char[8];
-        for (int i = 0; i < 8; i++) {
-            int value = (int)((checksumPolymod >>> (5 * (7 - i))) & 31);
-            checksum[i] = CHECKSUM_CHARSET.charAt(value);
-        }
-        return new String(checksum);
+    private static boolean verifyChecksum(CharSequence script, CharSequence checksum) {
+        DescriptorChecksum descsum = new DescriptorChecksum();
+        descsum.update(script);
+        return descsum.verify(checksum);
     }
 
-    private static List<Integer> descsumExpand(String s) {
-        List<Integer> symbols = new ArrayList<>();
-        List<Integer> groups = new ArrayList<>();
-        for (char c : s.toCharArray()) {
-            int v = INPUT_CHARSET.indexOf(c);
-            if (v == -1) {
-                throw new IllegalArgumentException("Invalid character in script: " + c);
-            }
-            symbols.add(v & 31); // Low 5 bits
-            groups.add(v >> 5);  // Group
-            if (groups.size() == 3) {
-                symbols.add(groups.get(0) * 9 + groups.get(1) * 3 + groups.get(2));
-                groups.clear();
-            }
-        }
-        if (groups.size() == 1) {
-            symbols.add(groups.get(0));
-        } else if (groups.size() == 2) {
-            symbols.add(groups.get(0) * 3 + groups.get(1));
-        }
-        return symbols;
-    }
-
-    private static long descsumPolymod(List<Integer> symbols) {
-        long chk = 1;
-        for (int value : symbols) {
-            long top = chk >>> 35;
-            chk = ((chk & 0x7ffffffffL) << 5) ^ value;
-            for (int i = 0; i < 5; i++) {
-                if (((top >>> i) & 1) != 0) {
-                    chk ^= GENERATOR[i];
-                }
-            }
-        }
-        return chk;
+    private static String computeChecksum(CharSequence script) {
+        return DescriptorChecksum.compute(script);
     }
 }
@@ -0,0 +1,438 @@
+package com.pv286.bip380;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+
+// One slice of an input corpus split across processes with --shard i/N[:hash]. Non-empty input
+// lines are numbered from 0 and assigned by line number, or by a CRC32 of the line with ':hash'.
+// A sharded run prints tagged records instead of plain output:
+//
+//   #shard i/N mode            header
+//   #resume <line>             --follow only: first line this run processes
+//   <line>\t<O|E>\t<text>      one per output line, O for stdout and E for stderr
+//   #exit <code>               trailer, written when the input is exhausted or --follow stops
+//
+// so that "bip380 merge" can put the shards back into the exact output of a single run. A restarted
+// --follow run appends a new header to the same file. Records of the earlier run from its resume
+// line on were never checkpointed, so they may be partial and are replaced by the new run's.
+final class Shard {
+    private static final String HEADER = "#shard ";
+    private static final String TRAILER = "#exit ";
+    private static final String RESUME = "#resume ";
+
+    private final int index;
+    private final int count;
+    private final boolean byHash;
+
+    private Shard(int index, int count, boolean byHash) {
+        this.index = index;
+        this.count = count;
+        this.byHash = byHash;
+    }
+
+    static Shard parse(String spec) {
+        boolean byHash = false;
+        String range = spec;
+        if (spec.endsWith(":hash")) {
+            byHash = true;
+            range = spec.substring(0, spec.length() - 5);
+        } else if (spec.endsWith(":line")) {
+            range = spec.substring(0, spec.length() - 5);
+        }
+        int slash = range.indexOf('/');
+        try {
+            int index = Integer.parseInt(range.substring(0, slash));
+            int count = Integer.parseInt(range.substring(slash + 1));
+            if (count <= 0 || index < 0 || index >= count) {
+                throw new IllegalArgumentException("Invalid shard " + spec + " (must be i/N with 0 <= i < N)");
+            }
+            return new Shard(index, count, byHash);
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid shard " + spec + " (must be i/N or i/N:hash)");
+        }
+    }
+
+    boolean owns(long line, CharSequence content) {
+        if (!byHash) {
+            return line % count == index;
+        }
+        CRC32 crc = new CRC32();
+        if (content instanceof AsciiLineReader.Line) {
+            ((AsciiLineReader.Line) content).updateChecksum(crc);
+        } else {
+            crc.update(content.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return crc.getValue() % count == index;
+    }
+
+    boolean byHash() {
+        return byHash;
+    }
+
+    void writeHeader() {
+        OutputCapture.stdout().println(HEADER + index + "/" + count + " " + (byHash ? "hash" : "line"));
+    }
+
+    void writeResume(long line) {
+        OutputCapture.stdout().println(RESUME + line);
+    }
+
+    // Runs one line's work and prints its output as records while it is written, so a streamed
+    // raw(...) line is not held in memory; returns the work's result
+    boolean record(long line, BooleanSupplier work) {
+        RecordWriter records = new RecordWriter(OutputCapture.stdout(), line);
+        try {
+            return OutputCapture.route(work, records);
+        } finally {
+            records.finish();
+        }
+    }
+
+    // Prints output captured earlier for a line as records, split the same way; returns the line's result
+    boolean record(long line, OutputCapture.Capture capture) {
+        PrintStream out = OutputCapture.stdout();
+        byte[] prefix = (line + "\t").getBytes(StandardCharsets.US_ASCII);
+        capture.forEachLine((stream, bytes, off, len) -> {
+            out.write(prefix, 0, prefix.length);
+            out.write(stream);
+            out.write('\t');
+            out.write(bytes, off, len);
+            out.write('\n');
+        });
+        return capture.ok();
+    }
+
+    void writeTrailer(int exitCode) {
+        PrintStream out = OutputCapture.stdout();
+        out.println(TRAILER + exitCode);
+        out.flush();
+    }
+
+    // bip380 merge FILE...: k-way merge of shard outputs by line number
+    static int merge(String[] files) {
+        if (files.length == 0) {
+            System.err.println("Error: Missing shard output files");
+            return 1;
+        }
+        ShardReader[] readers = new ShardReader[files.length];
+        String mode = null;
+        int count = -1;
+        boolean[] seen = null;
+        try {
+            for (int i = 0; i < files.length; i++) {
+                readers[i] = new ShardReader(files[i]);
+                String[] header = readers[i].header.substring(HEADER.length()).split("[/ ]");
+                int shardIndex = Integer.parseInt(header[0]);
+                if (mode == null) {
+                    count = Integer.parseInt(header[1]);
+                    mode = header[2];
+                    seen = new boolean[count];
+                } else if (count != Integer.parseInt(header[1]) || !mode.equals(header[2])) {
+                    System.err.println("Error: " + files[i] + " belongs to a different sharding (" + readers[i].header + ")");
+                    return 1;
+                }
+                if (shardIndex < 0 || shardIndex >= count || seen[shardIndex]) {
+                    System.err.println("Error: " + files[i] + " repeats or is outside the shard set (" + readers[i].header + ")");
+                    return 1;
+                }
+                seen[shardIndex] = true;
+            }
+            if (files.length != count) {
+                System.err.println("Error: Expected " + count + " shard outputs, got " + files.length);
+                return 1;
+            }
+
+            PriorityQueue<ShardReader> queue = new PriorityQueue<>((a, b) -> Long.compare(a.line, b.line));
+            for (ShardReader reader : readers) {
+                if (reader.advance()) queue.add(reader);
+            }
+            PrintStream out = System.out;
+            PrintStream err = System.err;
+            while (!queue.isEmpty()) {
+                ShardReader reader = queue.poll();
+                long line = reader.line;
+                do {
+                    PrintStream target = reader.stream == 'O' ? out : err;
+                    reader.copyText(target);
+                } while (reader.advance() && reader.line == line);
+                if (!reader.done) queue.add(reader);
+            }
+            out.flush();
+
+            int exitCode = 0;
+            for (int i = 0; i < readers.length; i++) {
+                if (readers[i].exitCode < 0) {
+                    System.err.println("Error: " + files[i] + " has no exit status (incomplete run)");
+                    exitCode = Math.max(exitCode, 1);
+                } else {
+                    exitCode = Math.max(exitCode, readers[i].exitCode);
+                }
+            }
+            return exitCode;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        } finally {
+            for (ShardReader reader : readers) {
+                if (reader != null) reader.close();
+            }
+        }
+    }
+
+    // Prefixes each output line with its record tag as it is written. A switch to the other stream
+    // ends the current record, as it ends a segment of a Capture.
+    private static final class RecordWriter implements OutputCapture.Sink {
+        private final PrintStream out;
+        private final byte[] prefix;
+        private boolean atLineStart = true;
+        private char stream;
+
+        RecordWriter(PrintStream out, long line) {
+            this.out = out;
+            this.prefix = (line + "\t").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public void write(char stream, byte[] b, int off, int len) {
+            if (!atLineStart && stream != this.stream) {
+                out.write('\n');
+                atLineStart = true;
+            }
+            this.stream = stream;
+            int end = off + len;
+            while (off < end) {
+                if (atLineStart) {
+                    out.write(prefix, 0, prefix.length);
+                    out.write(stream);
+                    out.write('\t');
+                    atLineStart = false;
+                }
+                int newline = off;
+                while (newline < end && b[newline] != '\n') newline++;
+                if (newline < end) {
+                    out.write(b, off, newline + 1 - off);
+                    atLineStart = true;
+                    off = newline + 1;
+                } else {
+                    out.write(b, off, end - off);
+                    off = end;
+                }
+            }
+        }
+
+        void finish() {
+            if (!atLineStart) out.write('\n');
+        }
+    }
+
+    private static final class ShardReader {
+        private final String file;
+        private final InputStream in;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final String header;
+        // For each run in the file, the line from which its records were superseded by a later run
+        private final long[] limits;
+        // Physical lines just before a restarted run's header; a killed run may have cut them short
+        private final Set<Long> cutLines = new HashSet<>();
+        private int run;
+        private final byte[] chunk = new byte[8192];
+        private long physicalLine;
+        // Only the start of each line is held; the rest of a record's text is copied when merged
+        private boolean lineOpen;
+        private long line = -1;
+        private char stream;
+        private byte[] head;
+        private int textStart;
+        private int exitCode = -1;
+        private boolean done;
+
+        ShardReader(String file) throws IOException {
+            this.file = file;
+            this.limits = scanRuns();
+            this.in = open(file);
+            String first = "";
+            while (readHead()) {
+                physicalLine++;
+                if (buffer.size() > 0) {
+                    first = buffer.toString("UTF-8");
+                    break;
+                }
+            }
+            if (!first.startsWith(HEADER)) {
+                close();
+                throw new IOException(file + " is not a shard output");
+            }
+            this.header = first;
+        }
+
+        // First pass over the file: where each run resumed, and so which of its records count
+        private long[] scanRuns() throws IOException {
+            List<Long> resumes = new ArrayList<>();
+            try (InputStream scan = open(file)) {
+                ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+                long n = 0;
+                boolean afterRecord = false;
+                while (readLineStart(scan, lineBuffer)) {
+                    n++;
+                    String start = start(lineBuffer.toByteArray());
+                    if (start.startsWith(HEADER)) {
+                        if (!resumes.isEmpty() && afterRecord) cutLines.add(n - 1);
+                        resumes.add(0L);
+                        afterRecord = false;
+                    } else if (start.startsWith(RESUME) && !resumes.isEmpty()) {
+                        resumes.set(resumes.size() - 1, Long.parseLong(start.substring(RESUME.length()).trim()));
+                        afterRecord = false;
+                    } else {
+                        afterRecord = lineBuffer.size() > 0 && !start.startsWith(TRAILER);
+                    }
+                }
+            }
+            long[] runLimits = new long[Math.max(resumes.size(), 1)];
+            long limit = Long.MAX_VALUE;
+            for (int i = runLimits.length - 1; i >= 0; i--) {
+                runLimits[i] = limit;
+                if (i < resumes.size()) limit = Math.min(limit, resumes.get(i));
+            }
+            return runLimits;
+        }
+
+        // Moves to the next output record; false at the end of the file
+        boolean advance() throws IOException {
+            while (readHead()) {
+                physicalLine++;
+                if (buffer.size() == 0) {
+                    // Written before a restarted run's header
+                    continue;
+                }
+                byte[] record = buffer.toByteArray();
+                String start = start(record);
+                if (start.startsWith(TRAILER)) {
+                    exitCode = Integer.parseInt(start.substring(TRAILER.length()).trim());
+                    continue;
+                }
+                if (start.startsWith(HEADER)) {
+                    // Restarted --follow runs repeat the header; the file is complete once the last run ends
+                    if (!start.equals(header)) throw new IOException(file + " mixes shard headers");
+                    run++;
+                    exitCode = -1;
+                    continue;
+                }
+                if (start.startsWith(RESUME)) {
+                    continue;
+                }
+                int tab = start.indexOf('\t');
+                long next = -1;
+                if (tab > 0 && record.length >= tab + 3 && record[tab + 2] == '\t') {
+                    try {
+                        next = Long.parseLong(start.substring(0, tab));
+                    } catch (NumberFormatException e) {
+                        next = -1;
+                    }
+                }
+                if (next < 0) {
+                    if (cutLines.contains(physicalLine)) continue;
+                    throw new IOException(file + " has a malformed record");
+                }
+                if (next >= limits[run]) {
+                    // Not checkpointed before a restart, which wrote this line again
+                    continue;
+                }
+                if (next < line) {
+                    throw new IOException(file + " is not in line order");
+                }
+                line = next;
+                stream = (char) record[tab + 1];
+                head = record;
+                textStart = tab + 3;
+                return true;
+            }
+            done = true;
+            return false;
+        }
+
+        private static InputStream open(String file) throws IOException {
+            return new BufferedInputStream(Files.newInputStream(Paths.get(file)), 1 << 16);
+        }
+
+        private static String start(byte[] record) {
+            return new String(record, 0, Math.min(record.length, 64), StandardCharsets.US_ASCII);
+        }
+
+        // Reads a whole line but keeps only its first 64 bytes, which hold any tag
+        private static boolean readLineStart(InputStream in, ByteArrayOutputStream buffer) throws IOException {
+            buffer.reset();
+            int b = in.read();
+            if (b == -1) return false;
+            while (b != -1 && b != '\n') {
+                if (buffer.size() < 64) buffer.write(b);
+                b = in.read();
+            }
+            return true;
+        }
+
+        // Reads up to 64 bytes of the next line into buffer, first skipping what is left of the
+        // current one; false at the end of the file
+        private boolean readHead() throws IOException {
+            skipRest();
+            buffer.reset();
+            int b = in.read();
+            if (b == -1) return false;
+            while (b != -1 && b != '\n') {
+                buffer.write(b);
+                if (buffer.size() == 64) {
+                    lineOpen = true;
+                    return true;
+                }
+                b = in.read();
+            }
+            lineOpen = false;
+            return true;
+        }
+
+        private void skipRest() throws IOException {
+            while (lineOpen) {
+                int b = in.read();
+                lineOpen = b != -1 && b != '\n';
+            }
+        }
+
+        // Copies the current record's text and a newline to target, streaming any part not yet read
+        void copyText(PrintStream target) throws IOException {
+            target.write(head, textStart, head.length - textStart);
+            int n = 0;
+            while (lineOpen) {
+                int b = in.read();
+                lineOpen = b != -1 && b != '\n';
+                if (!lineOpen) break;
+                chunk[n++] = (byte) b;
+                if (n == chunk.length) {
+                    target.write(chunk, 0, n);
+                    n = 0;
+                }
+            }
+            chunk[n++] = '\n';
+            target.write(chunk, 0, n);
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing left to read from it
+            }
+        }
+    }
+}